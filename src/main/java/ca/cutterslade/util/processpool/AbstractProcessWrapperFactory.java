@@ -0,0 +1,163 @@
+package ca.cutterslade.util.processpool;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.pool.KeyedPoolableObjectFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.cutterslade.util.jvmbuilder.JvmFactory;
+
+abstract class AbstractProcessWrapperFactory implements KeyedPoolableObjectFactory<JvmFactory<?>, ProcessWrapper> {
+  private static final Logger log = LoggerFactory.getLogger(AbstractProcessWrapperFactory.class);
+
+  private static final long DEFAULT_KILL_TIMEOUT_MILLIS = 5000;
+
+  private final ConcurrentMap<JvmFactory<?>, List<Callable<?>>> warmUps = new ConcurrentHashMap<>();
+  private final ProcessReaper reaper = new ProcessReaper(DEFAULT_KILL_TIMEOUT_MILLIS);
+
+  /**
+   * Run the callable in every child launched for the JVM factory before it is used; a child failing it is not used.
+   */
+  void addWarmUp(final JvmFactory<?> jvmFactory, final Callable<?> warmUp) {
+    final JvmFactory<?> key = ProcessPool.taskJvmFactory(jvmFactory);
+    warmUps.putIfAbsent(key, new CopyOnWriteArrayList<Callable<?>>());
+    warmUps.get(key).add(warmUp);
+  }
+
+  /**
+   * Starts a child which connects back to the specified port.
+   */
+  interface Launcher {
+    Process launch(int port) throws Exception;
+  }
+
+  abstract ProcessWrapper createWrapper(JvmFactory<?> key) throws Exception;
+
+  /**
+   * Launch a child and wait for it to connect back; the child is destroyed if it does not connect.
+   */
+  static ProcessWrapper connect(final InetAddress address, final int acceptTimeout, final int readTimeout,
+      final Launcher launcher) throws Exception {
+    Process process = null;
+    Socket socket = null;
+    boolean success = false;
+    try (final ServerSocket server = new ServerSocket(0, 0, address)) {
+      server.setSoTimeout(acceptTimeout);
+      process = launcher.launch(server.getLocalPort());
+      socket = server.accept();
+      socket.setSoTimeout(readTimeout);
+      success = true;
+    }
+    finally {
+      if (!success) {
+        try {
+          if (null != socket) {
+            socket.close();
+          }
+        }
+        finally {
+          if (null != process) {
+            process.destroy();
+          }
+        }
+      }
+    }
+    return new ProcessWrapper(process, socket);
+  }
+
+  @Override
+  public final ProcessWrapper makeObject(final JvmFactory<?> key) throws Exception {
+    final Trace trace = Trace.current();
+    final long spawnMicros = TraceSpan.nowMicros();
+    final ProcessWrapper wrapper = createWrapper(key);
+    final long warmUpMicros = TraceSpan.nowMicros();
+    boolean success = false;
+    try {
+      warmUp(key, wrapper);
+      success = true;
+      if (null != trace) {
+        trace.add("spawn", spawnMicros, warmUpMicros);
+        trace.add("warm-up", warmUpMicros, TraceSpan.nowMicros());
+      }
+    }
+    finally {
+      if (!success) {
+        destroyObject(key, wrapper);
+      }
+    }
+    return wrapper;
+  }
+
+  private void warmUp(final JvmFactory<?> key, final ProcessWrapper wrapper) throws Exception {
+    final List<Callable<?>> keyWarmUps = warmUps.get(key);
+    for (final Callable<?> warmUp : null == keyWarmUps ? Collections.<Callable<?>>emptyList() : keyWarmUps) {
+      log.debug("Running warm-up {} in {}", warmUp, wrapper);
+      wrapper.run(warmUp, warmUp instanceof SpecifiesTimeout ? ((SpecifiesTimeout) warmUp).getTimeoutMillis() : 0);
+    }
+  }
+
+  /**
+   * Sends the kill command and returns without waiting for the child to exit; see {@link #awaitDestroyed}.
+   */
+  @Override
+  public final void destroyObject(final JvmFactory<?> key, final ProcessWrapper obj) {
+    reaper.reap(obj, new Runnable() {
+      @Override
+      public void run() {
+        destroyed(key, obj);
+      }
+    });
+  }
+
+  /**
+   * Called once the child of a destroyed wrapper has exited.
+   */
+  void destroyed(final JvmFactory<?> key, final ProcessWrapper wrapper) {
+  }
+
+  /**
+   * @return true if all children destroyed so far have exited; those outliving the kill timeout are destroyed
+   */
+  boolean awaitDestroyed(final long timeout, final TimeUnit unit) throws InterruptedException {
+    return reaper.awaitExits(timeout, unit);
+  }
+
+  long getKillTimeoutMillis() {
+    return reaper.getKillTimeoutMillis();
+  }
+
+  @Override
+  public boolean validateObject(final JvmFactory<?> key, final ProcessWrapper obj) {
+    boolean valid = false;
+    if (obj.isBroken()) {
+      log.debug("Wrapper {} has a broken connection", obj);
+      return valid;
+    }
+    try {
+      obj.ping();
+      valid = true;
+    }
+    catch (Exception e) {
+      log.warn("Exception thrown validating wrapper {}", obj, e);
+    }
+    return valid;
+  }
+
+  @Override
+  public void activateObject(final JvmFactory<?> key, final ProcessWrapper obj) throws Exception {
+  }
+
+  @Override
+  public void passivateObject(final JvmFactory<?> key, final ProcessWrapper obj) throws Exception {
+  }
+}
@@ -0,0 +1,16 @@
+package ca.cutterslade.util.processpool;
+
+import javax.annotation.Nullable;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * The result of a task run in a child process, along with the resources the task used there.
+ */
+public interface AccountedFuture<T> extends ListenableFuture<T> {
+  /**
+   * @return the usage of the attempts finished so far, or null; a cancelled hedge may add to it after completion
+   */
+  @Nullable
+  TaskUsage getUsage();
+}
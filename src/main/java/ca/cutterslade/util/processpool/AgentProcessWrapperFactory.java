@@ -0,0 +1,98 @@
+package ca.cutterslade.util.processpool;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.cutterslade.util.jvmbuilder.JvmFactory;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+/**
+ * Creates wrappers for children launched by the {@link ProcessAgent} with the most free slots.
+ */
+final class AgentProcessWrapperFactory extends AbstractProcessWrapperFactory {
+  private static final Logger log = LoggerFactory.getLogger(AgentProcessWrapperFactory.class);
+
+  private final List<InetSocketAddress> agents;
+  private final byte[] secret;
+  private final InetAddress callbackAddress;
+  private final int acceptTimeout;
+  private final int readTimeout;
+
+  AgentProcessWrapperFactory(final List<InetSocketAddress> agents, final byte[] secret,
+      final InetAddress callbackAddress, final int acceptTimeout, final int readTimeout) {
+    this.agents = ImmutableList.copyOf(agents);
+    this.secret = secret.clone();
+    this.callbackAddress = callbackAddress;
+    this.acceptTimeout = acceptTimeout;
+    this.readTimeout = readTimeout;
+  }
+
+  @Override
+  ProcessWrapper createWrapper(final JvmFactory<?> key) throws Exception {
+    return connect(callbackAddress, acceptTimeout, readTimeout, new Launcher() {
+      @Override
+      public Process launch(final int port) {
+        return spawn(key, port);
+      }
+    });
+  }
+
+  private Process spawn(final JvmFactory<?> key, final int port) {
+    if (!(key instanceof Serializable)) {
+      log.warn("{} is not serializable, the agent will launch its own default JVM instead of using its options and " +
+          "class path", key);
+    }
+    final ProcessAgent.SpawnCommand command = new ProcessAgent.SpawnCommand(callbackAddress.getHostAddress(), port,
+        key instanceof Serializable ? key : null);
+    for (final InetSocketAddress agent : agentsByFreeSlots()) {
+      try {
+        final long id = (Long) ProcessAgent.call(agent, secret, command);
+        log.debug("Agent {} spawned child {} for {}", agent, id, key);
+        return new RemoteProcess(agent, secret, id);
+      }
+      catch (IOException e) {
+        log.warn("Agent {} failed to spawn a child for {}", agent, key, e);
+      }
+    }
+    throw new NoSuchElementException("No agent was able to spawn a child for " + key);
+  }
+
+  /**
+   * The agents which report a free slot, most free slots first.
+   */
+  private List<InetSocketAddress> agentsByFreeSlots() {
+    final Map<InetSocketAddress, Integer> freeSlots = Maps.newHashMap();
+    for (final InetSocketAddress agent : agents) {
+      try {
+        final int free = (Integer) ProcessAgent.call(agent, secret, new ProcessAgent.StatusCommand());
+        if (0 < free) {
+          freeSlots.put(agent, free);
+        }
+      }
+      catch (IOException e) {
+        log.warn("Could not get status of agent {}", agent, e);
+      }
+    }
+    final List<InetSocketAddress> available = new ArrayList<>(freeSlots.keySet());
+    Collections.sort(available, new Comparator<InetSocketAddress>() {
+      @Override
+      public int compare(final InetSocketAddress o1, final InetSocketAddress o2) {
+        return freeSlots.get(o2).compareTo(freeSlots.get(o1));
+      }
+    });
+    return available;
+  }
+}
@@ -0,0 +1,87 @@
+package ca.cutterslade.util.processpool;
+
+import java.io.Serializable;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+
+/**
+ * A child's heap and GC behaviour, sampled by the child after running a task.
+ */
+final class ChildStats implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private final long liveHeapBytes;
+  private final long maxHeapBytes;
+  private final long gcMillis;
+  private final long uptimeMillis;
+  private final long executeMicros;
+
+  ChildStats(final long liveHeapBytes, final long maxHeapBytes, final long gcMillis, final long uptimeMillis,
+      final long executeMicros) {
+    this.liveHeapBytes = liveHeapBytes;
+    this.maxHeapBytes = maxHeapBytes;
+    this.gcMillis = gcMillis;
+    this.uptimeMillis = uptimeMillis;
+    this.executeMicros = executeMicros;
+  }
+
+  /**
+   * @param executeMicros time taken to execute the task just completed
+   */
+  static ChildStats sample(final long executeMicros) {
+    // Usage after the most recent collection approximates the live data; pools which do not report it, or have not
+    // been collected yet, are counted as currently used
+    long liveHeapBytes = 0;
+    for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (MemoryType.HEAP == pool.getType()) {
+        final MemoryUsage collectionUsage = pool.getCollectionUsage();
+        liveHeapBytes += null == collectionUsage || 0 == collectionUsage.getCommitted() ?
+            pool.getUsage().getUsed() : collectionUsage.getUsed();
+      }
+    }
+    long gcMillis = 0;
+    for (final GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+      gcMillis += Math.max(0, collector.getCollectionTime());
+    }
+    return new ChildStats(liveHeapBytes, ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getMax(), gcMillis,
+        ManagementFactory.getRuntimeMXBean().getUptime(), executeMicros);
+  }
+
+  long getLiveHeapBytes() {
+    return liveHeapBytes;
+  }
+
+  /**
+   * @return the maximum heap size, or -1 if it is not defined
+   */
+  long getMaxHeapBytes() {
+    return maxHeapBytes;
+  }
+
+  /**
+   * @return the fraction of heap in use after collections
+   */
+  double getHeapOccupancy() {
+    return 0 < maxHeapBytes ? (double) liveHeapBytes / maxHeapBytes : 0;
+  }
+
+  /**
+   * @return the fraction of the child's lifetime spent collecting garbage
+   */
+  double getGcFraction() {
+    return 0 < uptimeMillis ? (double) gcMillis / uptimeMillis : 0;
+  }
+
+  long getExecuteMicros() {
+    return executeMicros;
+  }
+
+  @Override
+  public String toString() {
+    return "ChildStats[live " + liveHeapBytes + " of " + maxHeapBytes + " bytes, " + gcMillis + " ms GC in " +
+        uptimeMillis + " ms, task " + executeMicros + " us]";
+  }
+}
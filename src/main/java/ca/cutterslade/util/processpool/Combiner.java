@@ -0,0 +1,8 @@
+package ca.cutterslade.util.processpool;
+
+/**
+ * Combines two partial results of a map/reduce; run by the children, so it must be serializable.
+ */
+public interface Combiner<T> {
+  T combine(T first, T second);
+}
@@ -0,0 +1,129 @@
+package ca.cutterslade.util.processpool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.DiscreteDomains;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Range;
+import com.google.common.collect.Ranges;
+import com.google.common.collect.Sets;
+
+/**
+ * Assigns each child a disjoint set of CPUs on the NUMA node with the most free CPUs.
+ */
+final class CpuPlacementPolicy {
+  private static final Logger log = LoggerFactory.getLogger(CpuPlacementPolicy.class);
+
+  private static final File NODE_DIRECTORY = new File("/sys/devices/system/node");
+  private static final Pattern NODE_PATTERN = Pattern.compile("node(\\d+)");
+
+  private final SortedMap<Integer, SortedSet<Integer>> freeCpus = Maps.newTreeMap();
+  private final int cpusPerChild;
+
+  CpuPlacementPolicy(final Map<Integer, ? extends Collection<Integer>> cpusByNode, final int cpusPerChild) {
+    Preconditions.checkArgument(0 < cpusPerChild);
+    for (final Map.Entry<Integer, ? extends Collection<Integer>> entry : cpusByNode.entrySet()) {
+      freeCpus.put(entry.getKey(), Sets.newTreeSet(entry.getValue()));
+    }
+    this.cpusPerChild = cpusPerChild;
+  }
+
+  /**
+   * Create a policy covering every CPU of this host, treated as one node where Linux does not report NUMA nodes.
+   */
+  static CpuPlacementPolicy forHost(final int cpusPerChild) {
+    return new CpuPlacementPolicy(hostCpusByNode(), cpusPerChild);
+  }
+
+  private static Map<Integer, List<Integer>> hostCpusByNode() {
+    final ImmutableSortedMap.Builder<Integer, List<Integer>> nodes = ImmutableSortedMap.naturalOrder();
+    final File[] nodeDirectories = NODE_DIRECTORY.listFiles();
+    if (null != nodeDirectories) {
+      for (final File nodeDirectory : nodeDirectories) {
+        final Matcher matcher = NODE_PATTERN.matcher(nodeDirectory.getName());
+        if (matcher.matches()) {
+          try {
+            final String cpuList =
+                new String(Files.readAllBytes(new File(nodeDirectory, "cpulist").toPath()), StandardCharsets.US_ASCII);
+            nodes.put(Integer.valueOf(matcher.group(1)), parseCpuList(cpuList));
+          }
+          catch (IOException e) {
+            log.warn("Could not read CPUs of NUMA node {}", nodeDirectory, e);
+          }
+        }
+      }
+    }
+    final Map<Integer, List<Integer>> cpusByNode = nodes.build();
+    if (cpusByNode.isEmpty()) {
+      log.debug("NUMA topology not available, treating all CPUs as one node");
+      final Range<Integer> cpus = Ranges.closedOpen(0, Runtime.getRuntime().availableProcessors());
+      return ImmutableSortedMap.<Integer, List<Integer>>of(0,
+          ImmutableList.copyOf(cpus.asSet(DiscreteDomains.integers())));
+    }
+    return cpusByNode;
+  }
+
+  static List<Integer> parseCpuList(final String cpuList) {
+    final List<Integer> cpus = Lists.newArrayList();
+    for (final String part : Splitter.on(',').trimResults().omitEmptyStrings().split(cpuList)) {
+      final int dash = part.indexOf('-');
+      if (0 > dash) {
+        cpus.add(Integer.valueOf(part));
+      }
+      else {
+        final Range<Integer> range =
+            Ranges.closed(Integer.valueOf(part.substring(0, dash)), Integer.valueOf(part.substring(dash + 1)));
+        cpus.addAll(range.asSet(DiscreteDomains.integers()));
+      }
+    }
+    return cpus;
+  }
+
+  /**
+   * @return CPUs for a new child, or null if no node has enough free CPUs
+   */
+  @Nullable
+  synchronized CpuSlice acquire() {
+    Map.Entry<Integer, SortedSet<Integer>> best = null;
+    for (final Map.Entry<Integer, SortedSet<Integer>> entry : freeCpus.entrySet()) {
+      if (null == best || best.getValue().size() < entry.getValue().size()) {
+        best = entry;
+      }
+    }
+    if (null == best || cpusPerChild > best.getValue().size()) {
+      log.debug("No NUMA node has {} free CPUs", cpusPerChild);
+      return null;
+    }
+    final List<Integer> cpus = ImmutableList.copyOf(Iterables.limit(best.getValue(), cpusPerChild));
+    best.getValue().removeAll(cpus);
+    final CpuSlice slice = new CpuSlice(best.getKey(), cpus);
+    log.debug("Acquired {}", slice);
+    return slice;
+  }
+
+  synchronized void release(final CpuSlice slice) {
+    log.debug("Releasing {}", slice);
+    freeCpus.get(slice.getNode()).addAll(slice.getCpus());
+  }
+}
@@ -0,0 +1,47 @@
+package ca.cutterslade.util.processpool;
+
+import java.util.List;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * A set of CPUs, all on one NUMA node, assigned to a single child.
+ */
+final class CpuSlice {
+  private final int node;
+  private final List<Integer> cpus;
+
+  CpuSlice(final int node, final List<Integer> cpus) {
+    this.node = node;
+    this.cpus = ImmutableList.copyOf(cpus);
+  }
+
+  int getNode() {
+    return node;
+  }
+
+  List<Integer> getCpus() {
+    return cpus;
+  }
+
+  /**
+   * The CPUs in the format accepted by {@code taskset -c}.
+   */
+  String getCpuList() {
+    return Joiner.on(',').join(cpus);
+  }
+
+  /**
+   * Size the child's GC and compiler threads to this slice; it lies on one node, so {@code -XX:+UseNUMA} is not used.
+   */
+  List<String> getJvmOptions() {
+    return ImmutableList.of("-XX:ParallelGCThreads=" + cpus.size(), "-XX:ConcGCThreads=" + Math.max(1, cpus.size() / 4),
+        "-XX:CICompilerCount=" + Math.max(2, cpus.size() / 2));
+  }
+
+  @Override
+  public String toString() {
+    return "CpuSlice[node " + node + ": " + getCpuList() + ']';
+  }
+}
@@ -0,0 +1,29 @@
+package ca.cutterslade.util.processpool;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A child which is not a process of this JVM, and whose streams are therefore always empty.
+ */
+abstract class DetachedProcess extends Process {
+  @Override
+  public OutputStream getOutputStream() {
+    return new OutputStream() {
+      @Override
+      public void write(final int b) {
+      }
+    };
+  }
+
+  @Override
+  public InputStream getInputStream() {
+    return new ByteArrayInputStream(new byte[0]);
+  }
+
+  @Override
+  public InputStream getErrorStream() {
+    return new ByteArrayInputStream(new byte[0]);
+  }
+}
@@ -0,0 +1,105 @@
+package ca.cutterslade.util.processpool;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses large frames of one connection, backing off exponentially while they do not compress well.
+ */
+final class FrameCompressor {
+  static final byte RAW = 0;
+  static final byte DEFLATE = 1;
+
+  private static final int DEFAULT_THRESHOLD = 16 * 1024;
+  private static final double DEFAULT_MAX_RATIO = 0.75;
+  private static final int MAX_BACKOFF = 64;
+
+  /**
+   * Never compresses; copying is cheaper than compressing between processes on the same host.
+   */
+  static final FrameCompressor NONE = new FrameCompressor(Integer.MAX_VALUE, 0);
+
+  private final int threshold;
+  private final double maxRatio;
+  private Deflater deflater;
+  private int skip;
+  private int backoff = 1;
+
+  FrameCompressor(final int threshold, final double maxRatio) {
+    this.threshold = threshold;
+    this.maxRatio = maxRatio;
+  }
+
+  static FrameCompressor forConnection(final Socket socket) {
+    return socket.getLocalAddress().equals(socket.getInetAddress()) ?
+        NONE : new FrameCompressor(DEFAULT_THRESHOLD, DEFAULT_MAX_RATIO);
+  }
+
+  /**
+   * @return the compressed frame, or null if the frame should be sent raw
+   */
+  synchronized byte[] compress(final byte[] bytes) {
+    if (bytes.length < threshold) {
+      return null;
+    }
+    if (0 < skip) {
+      skip--;
+      return null;
+    }
+    if (null == deflater) {
+      deflater = new Deflater(Deflater.BEST_SPEED);
+    }
+    deflater.reset();
+    deflater.setInput(bytes);
+    deflater.finish();
+    final int limit = (int) (bytes.length * maxRatio);
+    final ByteArrayOutputStream out = new ByteArrayOutputStream(limit);
+    out.write(bytes.length >>> 24);
+    out.write(bytes.length >>> 16);
+    out.write(bytes.length >>> 8);
+    out.write(bytes.length);
+    final byte[] buffer = new byte[8192];
+    while (!deflater.finished()) {
+      out.write(buffer, 0, deflater.deflate(buffer));
+      if (limit < out.size()) {
+        skip = backoff;
+        backoff = Math.min(MAX_BACKOFF, backoff * 2);
+        return null;
+      }
+    }
+    backoff = 1;
+    return out.toByteArray();
+  }
+
+  static byte[] decompress(final byte[] compressed) throws IOException {
+    final ByteBuffer buffer = ByteBuffer.wrap(compressed);
+    final byte[] bytes = new byte[buffer.getInt()];
+    final Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(compressed, 4, compressed.length - 4);
+      final int inflated = inflater.inflate(bytes);
+      if (bytes.length != inflated || !inflater.finished()) {
+        throw new IOException("Expected " + bytes.length + " bytes from compressed frame but inflated " + inflated);
+      }
+    }
+    catch (DataFormatException e) {
+      throw new IOException(e);
+    }
+    finally {
+      inflater.end();
+    }
+    return bytes;
+  }
+
+  synchronized void end() {
+    if (null != deflater) {
+      deflater.end();
+      deflater = null;
+    }
+  }
+}
@@ -0,0 +1,127 @@
+package ca.cutterslade.util.processpool;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.cutterslade.util.jvmbuilder.JvmFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Duplicates a slow {@link Idempotent} task on another child, within a budget of hedges per hedgeable task.
+ */
+final class HedgingPolicy {
+  private static final Logger log = LoggerFactory.getLogger(HedgingPolicy.class);
+
+  private static final int WINDOW_SIZE = 100;
+  private static final int MIN_SAMPLES = 20;
+  private static final double MAX_TOKENS = 10;
+  /**
+   * Time allowed for a child to honour a cancellation before it is killed.
+   */
+  private static final long CANCEL_GRACE_MILLIS = 1000;
+
+  /**
+   * The most recent latencies of tasks for one JVM factory.
+   */
+  private static final class LatencyWindow {
+    private final long[] latencies = new long[WINDOW_SIZE];
+    private int next;
+    private int count;
+
+    synchronized void record(final long latencyNanos) {
+      latencies[next] = latencyNanos;
+      next = (next + 1) % WINDOW_SIZE;
+      count = Math.min(WINDOW_SIZE, count + 1);
+    }
+
+    synchronized long percentile(final double percentile) {
+      if (MIN_SAMPLES > count) {
+        return -1;
+      }
+      final long[] sorted = Arrays.copyOf(latencies, count);
+      Arrays.sort(sorted);
+      return sorted[Math.min(sorted.length - 1, (int) (percentile * sorted.length))];
+    }
+  }
+
+  private final ConcurrentMap<JvmFactory<?>, LatencyWindow> latencies = new ConcurrentHashMap<>();
+  private final ExecutorService executor = Executors.newCachedThreadPool(
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("HedgingPolicy-attempt-%d").build());
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("HedgingPolicy-timer-%d").build());
+  private final double percentile;
+  private final double budget;
+  private double tokens;
+
+  /**
+   * @param percentile latency percentile, between zero and one, after which a task is hedged
+   */
+  HedgingPolicy(final double percentile, final double budget) {
+    Preconditions.checkArgument(0 < percentile && 1 > percentile);
+    Preconditions.checkArgument(0 <= budget && 1 >= budget);
+    this.percentile = percentile;
+    this.budget = budget;
+  }
+
+  void execute(final Runnable attempt) {
+    executor.execute(attempt);
+  }
+
+  /**
+   * @return the scheduled hedge, or null if too few latencies of the JVM factory's tasks are known
+   */
+  @Nullable
+  ScheduledFuture<?> scheduleHedge(final JvmFactory<?> key, final Runnable hedge) {
+    synchronized (this) {
+      tokens = Math.min(MAX_TOKENS, tokens + budget);
+    }
+    final LatencyWindow window = latencies.get(key);
+    final long delayNanos = null == window ? -1 : window.percentile(percentile);
+    if (0 > delayNanos) {
+      return null;
+    }
+    return scheduler.schedule(new Runnable() {
+      @Override
+      public void run() {
+        executor.execute(hedge);
+      }
+    }, delayNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * @return true if the budget allows another hedge, which is then deducted
+   */
+  synchronized boolean tryAcquireHedge() {
+    if (1 > tokens) {
+      log.debug("Hedging budget exhausted");
+      return false;
+    }
+    tokens--;
+    return true;
+  }
+
+  /**
+   * Kill the child of a cancelled attempt which has not stopped in time.
+   */
+  void scheduleKill(final Runnable kill) {
+    scheduler.schedule(kill, CANCEL_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  void recordLatency(final JvmFactory<?> key, final long latencyNanos) {
+    latencies.putIfAbsent(key, new LatencyWindow());
+    latencies.get(key).record(latencyNanos);
+  }
+}
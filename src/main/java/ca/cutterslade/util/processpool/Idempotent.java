@@ -0,0 +1,7 @@
+package ca.cutterslade.util.processpool;
+
+/**
+ * Marks a task which may run more than once, so a hedging service may start a second copy when the first is slow.
+ */
+public interface Idempotent {
+}
@@ -0,0 +1,136 @@
+package ca.cutterslade.util.processpool;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Decides when an {@link InlineSafe} task is cheaper to run in the parent than in a child.
+ */
+final class InlinePolicy {
+  private static final Logger log = LoggerFactory.getLogger(InlinePolicy.class);
+
+  enum Mode {
+    /**
+     * Run every inline safe task inline.
+     */
+    ALWAYS,
+    /**
+     * Run inline safe tasks inline when that is observed to be cheaper.
+     */
+    ADAPTIVE
+  }
+
+  /**
+   * Runs in a child needed before a class's cost is known.
+   */
+  private static final int MIN_SAMPLES = 5;
+  /**
+   * One in this many tasks chosen to run inline is sent to a child instead.
+   */
+  private static final int PROBE_INTERVAL = 100;
+  /**
+   * Weight of each new sample in the moving averages.
+   */
+  private static final double SMOOTHING = 0.2;
+
+  /**
+   * The recent costs of tasks of one class.
+   */
+  private static final class Cost {
+    private double taskNanos;
+    private double overheadNanos;
+    private int samples;
+    private int inlined;
+    private boolean inline;
+
+    synchronized boolean shouldInline() {
+      return inline && 0 != ++inlined % PROBE_INTERVAL;
+    }
+
+    synchronized boolean isInline() {
+      return inline;
+    }
+
+    /**
+     * @return true if the task's class should now run in the other place
+     */
+    synchronized boolean recordTask(final long nanos) {
+      taskNanos = average(taskNanos, nanos);
+      return update();
+    }
+
+    /**
+     * @return true if the task's class should now run in the other place
+     */
+    synchronized boolean recordRemote(final long latencyNanos, final long taskNanos) {
+      this.taskNanos = 0 == samples ? taskNanos : average(this.taskNanos, taskNanos);
+      final long overhead = Math.max(0, latencyNanos - taskNanos);
+      overheadNanos = 0 == samples ? overhead : average(overheadNanos, overhead);
+      samples++;
+      return update();
+    }
+
+    private boolean update() {
+      final boolean was = inline;
+      inline = MIN_SAMPLES <= samples && taskNanos < overheadNanos;
+      return was != inline;
+    }
+
+    private static double average(final double average, final long sample) {
+      return average + SMOOTHING * (sample - average);
+    }
+
+    @Override
+    public synchronized String toString() {
+      return "task " + (long) taskNanos + " ns, overhead " + (long) overheadNanos + " ns";
+    }
+  }
+
+  private final ConcurrentMap<Class<?>, Cost> costs = new ConcurrentHashMap<>();
+  private final Mode mode;
+
+  InlinePolicy(final Mode mode) {
+    this.mode = Preconditions.checkNotNull(mode);
+  }
+
+  private Cost cost(final Class<?> taskClass) {
+    costs.putIfAbsent(taskClass, new Cost());
+    return costs.get(taskClass);
+  }
+
+  boolean shouldInline(final Class<?> taskClass) {
+    return Mode.ALWAYS == mode || cost(taskClass).shouldInline();
+  }
+
+  void recordInline(final Class<?> taskClass, final long nanos) {
+    if (Mode.ADAPTIVE == mode) {
+      final Cost cost = cost(taskClass);
+      if (cost.recordTask(nanos)) {
+        changed(taskClass, cost);
+      }
+    }
+  }
+
+  /**
+   * @param latencyNanos time from starting the run in the child to its result being returned
+   */
+  void recordRemote(final Class<?> taskClass, final long latencyNanos, @Nullable final TaskUsage usage) {
+    if (Mode.ADAPTIVE == mode && null != usage) {
+      final Cost cost = cost(taskClass);
+      if (cost.recordRemote(latencyNanos, usage.getWallNanos())) {
+        changed(taskClass, cost);
+      }
+    }
+  }
+
+  private static void changed(final Class<?> taskClass, final Cost cost) {
+    log.debug("Running {} {}: {}", taskClass, cost.isInline() ? "inline" : "in children", cost);
+  }
+}
@@ -0,0 +1,7 @@
+package ca.cutterslade.util.processpool;
+
+/**
+ * Marks a task needing no isolation, which an inline service may run unserialized on its own threads.
+ */
+public interface InlineSafe {
+}
@@ -1,22 +1,15 @@
 package ca.cutterslade.util.processpool;
 
-import java.util.concurrent.Callable;
-
 import ca.cutterslade.util.jvmbuilder.JvmFactory;
 
-final class JvmCallable<T, R extends Runnable & SpecifiesJvmFactory> implements Callable<T>, SpecifiesJvmFactory {
+final class JvmCallable<T, R extends Runnable & SpecifiesJvmFactory> extends RunnableCallable<T>
+    implements SpecifiesJvmFactory {
+  private static final long serialVersionUID = 1L;
   private final R runnable;
-  private final T result;
 
   JvmCallable(final R runnable, final T result) {
+    super(runnable, result);
     this.runnable = runnable;
-    this.result = result;
-  }
-
-  @Override
-  public T call() {
-    runnable.run();
-    return result;
   }
 
   @Override
@@ -0,0 +1,258 @@
+package ca.cutterslade.util.processpool;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.cutterslade.util.jvmbuilder.JvmFactory;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+
+/**
+ * Tunes the heap, collector and compiler options of new children from the statistics reported by running ones.
+ */
+final class JvmFlagTuner {
+  private static final Logger log = LoggerFactory.getLogger(JvmFlagTuner.class);
+
+  /**
+   * Number of samples from children of the current generation needed before it is evaluated.
+   */
+  private static final int SAMPLES_PER_GENERATION = 50;
+  private static final double HIGH_OCCUPANCY = 0.75;
+  private static final double LOW_OCCUPANCY = 0.25;
+  private static final double HIGH_GC_FRACTION = 0.05;
+  private static final double LOW_GC_FRACTION = 0.01;
+  private static final double GROWTH = 1.5;
+  private static final double SHRINKAGE = 0.75;
+  /**
+   * Median task time, relative to that of the previous generation, above which a change is reverted.
+   */
+  private static final double REGRESSION = 1.1;
+
+  /**
+   * A set of tuned options; zero or negative values leave the factory's own options in place.
+   */
+  private static final class Profile {
+    private final int heapMegabytes;
+    private final int gcIndex;
+    private final int jitIndex;
+
+    private Profile(final int heapMegabytes, final int gcIndex, final int jitIndex) {
+      this.heapMegabytes = heapMegabytes;
+      this.gcIndex = gcIndex;
+      this.jitIndex = jitIndex;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Profile)) {
+        return false;
+      }
+      final Profile other = (Profile) o;
+      return heapMegabytes == other.heapMegabytes && gcIndex == other.gcIndex && jitIndex == other.jitIndex;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(heapMegabytes, gcIndex, jitIndex);
+    }
+
+    @Override
+    public String toString() {
+      return "Profile[heap " + (0 < heapMegabytes ? heapMegabytes + "m" : "default") + ", gc " + gcIndex + ", jit " +
+          jitIndex + ']';
+    }
+  }
+
+  private final class KeyState {
+    private final Deque<Profile> history = new ArrayDeque<>();
+    private final Set<Profile> rejected = Sets.newHashSet();
+    private final long[] executeMicros = new long[SAMPLES_PER_GENERATION];
+    private Profile profile = new Profile(0, -1, -1);
+    private int generation;
+    private int samples;
+    private double occupancy;
+    private double gcFraction;
+    private long maxHeapBytes;
+    /**
+     * Median task time of the previous generation until the current one is first evaluated, otherwise negative.
+     */
+    private long previousMedianMicros = -1;
+
+    synchronized List<String> getOptions() {
+      final ImmutableList.Builder<String> options = ImmutableList.builder();
+      if (0 < profile.heapMegabytes) {
+        options.add("-Xms" + profile.heapMegabytes + 'm', "-Xmx" + profile.heapMegabytes + 'm');
+      }
+      if (0 <= profile.gcIndex) {
+        options.addAll(gcAlternatives.get(profile.gcIndex));
+      }
+      if (0 <= profile.jitIndex) {
+        options.addAll(jitAlternatives.get(profile.jitIndex));
+      }
+      return options.build();
+    }
+
+    synchronized void record(final JvmFactory<?> key, final int childGeneration, final ChildStats stats) {
+      if (childGeneration != generation) {
+        return;
+      }
+      executeMicros[samples++] = stats.getExecuteMicros();
+      occupancy = Math.max(occupancy, stats.getHeapOccupancy());
+      gcFraction = Math.max(gcFraction, stats.getGcFraction());
+      maxHeapBytes = stats.getMaxHeapBytes();
+      if (SAMPLES_PER_GENERATION == samples) {
+        evaluate(key);
+      }
+    }
+
+    private void evaluate(final JvmFactory<?> key) {
+      final long[] sorted = executeMicros.clone();
+      Arrays.sort(sorted);
+      final long medianMicros = sorted[sorted.length / 2];
+      log.debug("Generation {} of {} with {}: median task {} us, occupancy {}, GC fraction {}", generation, key,
+          profile, medianMicros, occupancy, gcFraction);
+      if (0 <= previousMedianMicros && medianMicros > previousMedianMicros * REGRESSION && !history.isEmpty()) {
+        log.info("Tasks for {} slowed from {} us to {} us with {}, reverting", key, previousMedianMicros,
+            medianMicros, profile);
+        rejected.add(profile);
+        apply(key, history.pop(), -1);
+        return;
+      }
+      final Profile next = next();
+      if (null == next) {
+        // Keep watching the current generation; its later windows vary with the load, not with the options
+        reset(-1);
+      }
+      else {
+        log.info("Tuning {} from {} to {}: occupancy {}, GC fraction {}", key, profile, next, occupancy, gcFraction);
+        history.push(profile);
+        apply(key, next, medianMicros);
+      }
+    }
+
+    private Profile next() {
+      final int heapMegabytes = 0 < profile.heapMegabytes ?
+          profile.heapMegabytes : (int) Math.max(minHeapMegabytes, maxHeapBytes / (1024 * 1024));
+      if (HIGH_OCCUPANCY < occupancy || HIGH_GC_FRACTION < gcFraction) {
+        if (heapMegabytes < maxHeapMegabytes) {
+          final Profile grown = new Profile(Math.min(maxHeapMegabytes, (int) (heapMegabytes * GROWTH)),
+              profile.gcIndex, profile.jitIndex);
+          if (!rejected.contains(grown)) {
+            return grown;
+          }
+        }
+        if (HIGH_GC_FRACTION < gcFraction) {
+          for (int gc = profile.gcIndex + 1; gc < gcAlternatives.size(); gc++) {
+            final Profile collector = new Profile(profile.heapMegabytes, gc, profile.jitIndex);
+            if (!rejected.contains(collector)) {
+              return collector;
+            }
+          }
+        }
+      }
+      else if (LOW_OCCUPANCY > occupancy && LOW_GC_FRACTION > gcFraction && heapMegabytes > minHeapMegabytes) {
+        final Profile shrunk = new Profile(Math.max(minHeapMegabytes, (int) (heapMegabytes * SHRINKAGE)),
+            profile.gcIndex, profile.jitIndex);
+        if (!rejected.contains(shrunk)) {
+          return shrunk;
+        }
+      }
+      for (int jit = profile.jitIndex + 1; jit < jitAlternatives.size(); jit++) {
+        final Profile compiler = new Profile(profile.heapMegabytes, profile.gcIndex, jit);
+        if (!rejected.contains(compiler)) {
+          return compiler;
+        }
+      }
+      return null;
+    }
+
+    private void apply(final JvmFactory<?> key, final Profile next, final long medianMicros) {
+      profile = next;
+      generation++;
+      log.debug("Generation {} of {} uses {}", generation, key, getOptions());
+      reset(medianMicros);
+    }
+
+    private void reset(final long medianMicros) {
+      previousMedianMicros = medianMicros;
+      samples = 0;
+      occupancy = 0;
+      gcFraction = 0;
+    }
+
+    synchronized boolean revert(final JvmFactory<?> key) {
+      if (history.isEmpty()) {
+        return false;
+      }
+      log.info("Reverting {} from {}", key, profile);
+      rejected.add(profile);
+      apply(key, history.pop(), -1);
+      return true;
+    }
+  }
+
+  private final ConcurrentMap<JvmFactory<?>, KeyState> states = new ConcurrentHashMap<>();
+  private final int minHeapMegabytes;
+  private final int maxHeapMegabytes;
+  private final List<List<String>> gcAlternatives;
+  private final List<List<String>> jitAlternatives;
+
+  /**
+   * @param gcAlternatives collector options tried in turn; tuned factories should not select a collector themselves
+   */
+  JvmFlagTuner(final int minHeapMegabytes, final int maxHeapMegabytes, final List<List<String>> gcAlternatives,
+      final List<List<String>> jitAlternatives) {
+    Preconditions.checkArgument(0 < minHeapMegabytes && minHeapMegabytes <= maxHeapMegabytes);
+    this.minHeapMegabytes = minHeapMegabytes;
+    this.maxHeapMegabytes = maxHeapMegabytes;
+    this.gcAlternatives = ImmutableList.copyOf(gcAlternatives);
+    this.jitAlternatives = ImmutableList.copyOf(jitAlternatives);
+  }
+
+  private KeyState state(final JvmFactory<?> key) {
+    states.putIfAbsent(key, new KeyState());
+    return states.get(key);
+  }
+
+  /**
+   * @return the generation of children to launch for the key; children of other generations are replaced
+   */
+  int getGeneration(final JvmFactory<?> key) {
+    final KeyState state = state(key);
+    synchronized (state) {
+      return state.generation;
+    }
+  }
+
+  /**
+   * @return the options to add to those of the key when launching a child of the current generation
+   */
+  List<String> getOptions(final JvmFactory<?> key) {
+    return state(key).getOptions();
+  }
+
+  void record(final JvmFactory<?> key, final int generation, final ChildStats stats) {
+    state(key).record(key, generation, stats);
+  }
+
+  /**
+   * @return false if the key's options have not been changed; reverted options are not tried again
+   */
+  boolean revert(final JvmFactory<?> key) {
+    return state(key).revert(key);
+  }
+}
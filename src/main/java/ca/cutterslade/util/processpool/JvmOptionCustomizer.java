@@ -0,0 +1,12 @@
+package ca.cutterslade.util.processpool;
+
+import java.util.List;
+
+import ca.cutterslade.util.jvmbuilder.JvmFactory;
+
+/**
+ * Applies JVM options chosen by the pool to the already built factory of a child's key.
+ */
+interface JvmOptionCustomizer {
+  JvmFactory<?> withOptions(JvmFactory<?> jvmFactory, List<String> options);
+}
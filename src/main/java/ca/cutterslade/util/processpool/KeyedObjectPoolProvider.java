@@ -3,13 +3,12 @@ package ca.cutterslade.util.processpool;
 import javax.inject.Provider;
 
 import org.apache.commons.pool.KeyedObjectPool;
-import org.apache.commons.pool.KeyedPoolableObjectFactory;
 import org.apache.commons.pool.impl.GenericKeyedObjectPool;
 
 import ca.cutterslade.util.jvmbuilder.JvmFactory;
 
 final class KeyedObjectPoolProvider implements Provider<KeyedObjectPool<JvmFactory<?>, ProcessWrapper>> {
-  private final KeyedPoolableObjectFactory<JvmFactory<?>, ProcessWrapper> factory;
+  private final AbstractProcessWrapperFactory factory;
   private final int maxActive;
   private final byte whenExhaustedAction;
   private final long maxWait;
@@ -25,15 +24,19 @@ final class KeyedObjectPoolProvider implements Provider<KeyedObjectPool<JvmFacto
   private final boolean lifo;
 
   KeyedObjectPoolProvider() {
-    this(new ProcessWrapperFactory(5000, 5000), 10, GenericKeyedObjectPool.WHEN_EXHAUSTED_FAIL, 5000, 10, 10, 0, true,
-        true, 10000, 10, 5000, false, true);
+    this(new ProcessWrapperFactory(5000, 5000));
   }
 
-  KeyedObjectPoolProvider(final KeyedPoolableObjectFactory<JvmFactory<?>, ProcessWrapper> factory,
-      final int maxActive, final byte whenExhaustedAction, final long maxWait, final int maxIdle, final int maxTotal,
-      final int minIdle, final boolean testOnBorrow, final boolean testOnReturn,
-      final long timeBetweenEvictionRunsMillis, final int numTestsPerEvictionRun, final long minEvictableIdleTimeMillis,
-      final boolean testWhileIdle, final boolean lifo) {
+  KeyedObjectPoolProvider(final AbstractProcessWrapperFactory factory) {
+    this(factory, 10, GenericKeyedObjectPool.WHEN_EXHAUSTED_FAIL, 5000, 10, 10, 0, true, true, 10000, 10, 5000, false,
+        true);
+  }
+
+  KeyedObjectPoolProvider(final AbstractProcessWrapperFactory factory, final int maxActive,
+      final byte whenExhaustedAction, final long maxWait, final int maxIdle, final int maxTotal, final int minIdle,
+      final boolean testOnBorrow, final boolean testOnReturn, final long timeBetweenEvictionRunsMillis,
+      final int numTestsPerEvictionRun, final long minEvictableIdleTimeMillis, final boolean testWhileIdle,
+      final boolean lifo) {
     this.factory = factory;
     this.maxActive = maxActive;
     this.whenExhaustedAction = whenExhaustedAction;
@@ -50,6 +53,10 @@ final class KeyedObjectPoolProvider implements Provider<KeyedObjectPool<JvmFacto
     this.lifo = lifo;
   }
 
+  AbstractProcessWrapperFactory getFactory() {
+    return factory;
+  }
+
   @Override
   public KeyedObjectPool<JvmFactory<?>, ProcessWrapper> get() {
     return new GenericKeyedObjectPool<>(factory, maxActive, whenExhaustedAction, maxWait, maxIdle, maxTotal, minIdle,
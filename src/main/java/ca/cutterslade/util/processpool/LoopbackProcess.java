@@ -0,0 +1,68 @@
+package ca.cutterslade.util.processpool;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A child which runs the command loop of a {@link ProcessTask} on a thread of this process.
+ */
+final class LoopbackProcess extends DetachedProcess {
+  private static final Logger log = LoggerFactory.getLogger(LoopbackProcess.class);
+
+  private static final AtomicInteger COUNT = new AtomicInteger();
+
+  private final ProcessTask task;
+  private final Thread thread;
+  private volatile int exitValue;
+
+  LoopbackProcess(final ProcessTask task) {
+    this.task = task;
+    this.thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try (ProcessTask closing = task) {
+          closing.executeCommands();
+        }
+        catch (IOException | ClassNotFoundException | RuntimeException e) {
+          log.debug("Loopback child exiting after exception", e);
+          exitValue = 1;
+        }
+      }
+    }, "LoopbackProcess-" + COUNT.getAndIncrement());
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  @Override
+  public int waitFor() throws InterruptedException {
+    thread.join();
+    return exitValue;
+  }
+
+  @Override
+  public int exitValue() {
+    if (thread.isAlive()) {
+      throw new IllegalThreadStateException(thread.getName() + " has not exited");
+    }
+    return exitValue;
+  }
+
+  @Override
+  public void destroy() {
+    try {
+      task.close();
+    }
+    catch (IOException e) {
+      log.warn("Exception closing {}", thread.getName(), e);
+    }
+    thread.interrupt();
+  }
+
+  @Override
+  public String toString() {
+    return "LoopbackProcess[" + thread.getName() + ']';
+  }
+}
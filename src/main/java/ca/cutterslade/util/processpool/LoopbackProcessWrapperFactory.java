@@ -0,0 +1,36 @@
+package ca.cutterslade.util.processpool;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.cutterslade.util.jvmbuilder.JvmFactory;
+
+/**
+ * Creates children on threads of this process, to measure the overhead of the pool without launching JVMs.
+ */
+final class LoopbackProcessWrapperFactory extends AbstractProcessWrapperFactory {
+  private static final Logger log = LoggerFactory.getLogger(LoopbackProcessWrapperFactory.class);
+
+  private final int readTimeout;
+
+  LoopbackProcessWrapperFactory(final int readTimeout) {
+    this.readTimeout = readTimeout;
+  }
+
+  @Override
+  ProcessWrapper createWrapper(final JvmFactory<?> key) throws Exception {
+    final InetAddress address = InetAddress.getLoopbackAddress();
+    final ProcessWrapper wrapper = connect(address, 0, readTimeout, new Launcher() {
+      @Override
+      public Process launch(final int port) throws IOException {
+        // The connection is established once it is queued by the server socket, before it is accepted
+        return new LoopbackProcess(new ProcessTask(address, port));
+      }
+    });
+    log.debug("Created loopback child {}", wrapper);
+    return wrapper;
+  }
+}
@@ -0,0 +1,231 @@
+package ca.cutterslade.util.processpool;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.cutterslade.util.jvmbuilder.JvmFactory;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+
+/**
+ * Runs a function over an input in chunks sized to take about {@value #TARGET_CHUNK_MILLIS} ms, one child per worker.
+ */
+final class MapReduceJob<A, B> {
+  private static final Logger log = LoggerFactory.getLogger(MapReduceJob.class);
+
+  private static final long TARGET_CHUNK_MILLIS = 100;
+  private static final int MAX_CHUNK_SIZE = 10000;
+  /**
+   * Stands in for a null chunk result, which the results map can not hold.
+   */
+  private static final Object NULL_RESULT = new Object();
+
+  private static final class ChunkCallable<A, B> implements Callable<Object>, Serializable, WrapsTask {
+    private static final long serialVersionUID = 1L;
+    private final Function<? super A, ? extends B> function;
+    private final Combiner<B> combiner;
+    private final List<A> elements;
+
+    ChunkCallable(final Function<? super A, ? extends B> function, @Nullable final Combiner<B> combiner,
+        final List<A> elements) {
+      this.function = function;
+      this.combiner = combiner;
+      this.elements = elements;
+    }
+
+    @Override
+    public Object getTask() {
+      return function;
+    }
+
+    @Override
+    public Object call() {
+      if (null == combiner) {
+        final ArrayList<B> results = new ArrayList<>(elements.size());
+        for (final A element : elements) {
+          results.add(function.apply(element));
+        }
+        return results;
+      }
+      B result = function.apply(elements.get(0));
+      for (final A element : elements.subList(1, elements.size())) {
+        result = combiner.combine(result, function.apply(element));
+      }
+      return result;
+    }
+  }
+
+  private final class Worker implements Callable<Void> {
+    @Override
+    public Void call() throws Exception {
+      final ProcessWrapper wrapper;
+      try {
+        wrapper = pool.getWrapper(jvmFactory);
+        borrowed();
+      }
+      catch (ProcessPoolException e) {
+        if (borrowFailed()) {
+          failed = true;
+          throw e;
+        }
+        log.debug("Continuing without an extra worker", e);
+        return null;
+      }
+      try {
+        int chunkSize = 1;
+        for (Chunk<A> chunk = nextChunk(chunkSize); null != chunk; chunk = nextChunk(chunkSize)) {
+          final long start = System.nanoTime();
+          final Object result = wrapper.run(new ChunkCallable<>(function, combiner, chunk.elements));
+          results.put(chunk.index, null == result ? NULL_RESULT : result);
+          chunkSize = nextChunkSize(chunkSize, System.nanoTime() - start);
+        }
+      }
+      catch (Exception e) {
+        failed = true;
+        throw e;
+      }
+      finally {
+        if (wrapper.isBroken()) {
+          pool.invalidateWrapper(jvmFactory, wrapper);
+        }
+        else {
+          pool.returnWrapper(jvmFactory, wrapper);
+        }
+      }
+      return null;
+    }
+  }
+
+  private static final class Chunk<A> {
+    private final int index;
+    private final List<A> elements;
+
+    private Chunk(final int index, final List<A> elements) {
+      this.index = index;
+      this.elements = elements;
+    }
+  }
+
+  private final ProcessPool pool;
+  private final JvmFactory<?> jvmFactory;
+  private final Iterator<? extends A> input;
+  private final Function<? super A, ? extends B> function;
+  private final Combiner<B> combiner;
+  private final ConcurrentSkipListMap<Integer, Object> results = new ConcurrentSkipListMap<>();
+  private int chunks;
+  private int borrowing;
+  private int working;
+  private volatile boolean failed;
+
+  MapReduceJob(final ProcessPool pool, final JvmFactory<?> defaultJvmFactory, final Iterable<? extends A> input,
+      final Function<? super A, ? extends B> function, @Nullable final Combiner<B> combiner) {
+    this.pool = pool;
+    this.jvmFactory = pool.getJvmFactory(function, defaultJvmFactory);
+    this.input = input.iterator();
+    this.function = function;
+    this.combiner = combiner;
+  }
+
+  /**
+   * @return the future results of each chunk, in input order
+   */
+  ListenableFuture<List<Object>> start(final ListeningExecutorService executorService, final int parallelism) {
+    final List<ListenableFuture<Void>> workers = Lists.newArrayListWithCapacity(parallelism);
+    synchronized (this) {
+      borrowing = parallelism;
+    }
+    for (int i = 0; i < parallelism; i++) {
+      workers.add(executorService.submit(new Worker()));
+    }
+    return Futures.transform(Futures.allAsList(workers), new Function<List<Void>, List<Object>>() {
+      @Override
+      public List<Object> apply(final List<Void> input) {
+        log.debug("Completed job of {} chunks", chunks);
+        final List<Object> chunkResults = new ArrayList<>(results.size());
+        for (final Object result : results.values()) {
+          chunkResults.add(NULL_RESULT == result ? null : result);
+        }
+        return chunkResults;
+      }
+    });
+  }
+
+  /**
+   * @return true if the job must fail because no worker has a child or may still get one
+   */
+  private synchronized boolean borrowFailed() {
+    return 0 == --borrowing && 0 == working;
+  }
+
+  private synchronized void borrowed() {
+    borrowing--;
+    working++;
+  }
+
+  @Nullable
+  private synchronized Chunk<A> nextChunk(final int size) {
+    if (failed || !input.hasNext()) {
+      return null;
+    }
+    final List<A> elements = new ArrayList<>(size);
+    while (elements.size() < size && input.hasNext()) {
+      elements.add(input.next());
+    }
+    return new Chunk<>(chunks++, elements);
+  }
+
+  private static int nextChunkSize(final int chunkSize, final long elapsedNanos) {
+    final long target = TimeUnit.MILLISECONDS.toNanos(TARGET_CHUNK_MILLIS);
+    final long ideal = chunkSize * target / Math.max(1, elapsedNanos);
+    // Grow gradually, a single cheap chunk may be misleading
+    return (int) Math.max(1, Math.min(Math.min(ideal, chunkSize * 2L), MAX_CHUNK_SIZE));
+  }
+
+  static <B> Function<List<Object>, List<B>> flatten() {
+    return new Function<List<Object>, List<B>>() {
+      // Each chunk result of a map job is the list of results of the function
+      @SuppressWarnings("unchecked")
+      @Override
+      public List<B> apply(final List<Object> chunkResults) {
+        final List<B> results = Lists.newArrayList();
+        for (final Object chunkResult : chunkResults) {
+          results.addAll((List<B>) chunkResult);
+        }
+        return results;
+      }
+    };
+  }
+
+  static <B> Function<List<Object>, B> reduce(final Combiner<B> combiner) {
+    return new Function<List<Object>, B>() {
+      // Each chunk result of a map/reduce job is the combined results of the function
+      @SuppressWarnings("unchecked")
+      @Nullable
+      @Override
+      public B apply(final List<Object> chunkResults) {
+        if (chunkResults.isEmpty()) {
+          return null;
+        }
+        B result = (B) chunkResults.get(0);
+        for (final Object chunkResult : chunkResults.subList(1, chunkResults.size())) {
+          result = combiner.combine(result, (B) chunkResult);
+        }
+        return result;
+      }
+    };
+  }
+}
@@ -0,0 +1,34 @@
+package ca.cutterslade.util.processpool;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+final class OutputForwarder implements Runnable {
+  private static final Logger log = LoggerFactory.getLogger(OutputForwarder.class);
+
+  private final InputStream stream;
+  private final PrintStream output;
+
+  OutputForwarder(final InputStream stream, final PrintStream output) {
+    this.stream = stream;
+    this.output = output;
+  }
+
+  @Override
+  public void run() {
+    try (final BufferedReader reader = new BufferedReader(new InputStreamReader(stream))) {
+      for (String line = reader.readLine(); null != line; line = reader.readLine()) {
+        output.println(line);
+      }
+    }
+    catch (IOException e) {
+      log.warn("Exception reading from child's stream");
+    }
+  }
+}
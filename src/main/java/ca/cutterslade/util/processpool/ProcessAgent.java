@@ -0,0 +1,334 @@
+package ca.cutterslade.util.processpool;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.cutterslade.util.jvmbuilder.JvmFactory;
+import ca.cutterslade.util.jvmbuilder.sun.SunJvmFactoryBuilder;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Launches children on its host for remote pools, accepting only HMAC signed commands from those sharing its secret.
+ */
+public final class ProcessAgent implements Runnable, Closeable {
+  private static final Logger log = LoggerFactory.getLogger(ProcessAgent.class);
+
+  private static final int CONNECT_TIMEOUT = 5000;
+  private static final int CHALLENGE_BYTES = 16;
+  private static final int MAX_COMMAND_BYTES = 1 << 20;
+  private static final String MAC_ALGORITHM = "HmacSHA256";
+  private static final int MAC_BYTES = 32;
+  /**
+   * Environment variable holding the secret of an agent started with {@link #main(String[])}.
+   */
+  public static final String SECRET_VARIABLE = "PROCESS_AGENT_SECRET";
+
+  private static final ThreadFactory THREAD_FACTORY =
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ProcessAgent-worker-%d").build();
+
+  /**
+   * Arguments: {@code port maxChildren [bindAddress]}; the secret is read from {@value #SECRET_VARIABLE}.
+   */
+  public static void main(@Nonnull final String[] args) throws IOException {
+    Preconditions.checkArgument(2 == args.length || 3 == args.length,
+        "Usage: ProcessAgent port maxChildren [bindAddress]");
+    final int port = Integer.parseInt(args[0]);
+    final int maxChildren = Integer.parseInt(args[1]);
+    final InetAddress bindAddress =
+        3 == args.length ? InetAddress.getByName(args[2]) : InetAddress.getLoopbackAddress();
+    final String secret = System.getenv(SECRET_VARIABLE);
+    Preconditions.checkState(null != secret && !secret.isEmpty(), "%s must be set", SECRET_VARIABLE);
+    try (ProcessAgent agent = new ProcessAgent(bindAddress, port, maxChildren,
+        new SunJvmFactoryBuilder().setMainClass(ProcessTask.class).build(), secret.getBytes(StandardCharsets.UTF_8))) {
+      agent.run();
+    }
+  }
+
+  interface AgentCommand extends Serializable {
+    Object execute(ProcessAgent agent) throws Exception;
+  }
+
+  static final class StatusCommand implements AgentCommand {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public Object execute(final ProcessAgent agent) {
+      return agent.freeSlots();
+    }
+  }
+
+  static final class SpawnCommand implements AgentCommand {
+    private static final long serialVersionUID = 1L;
+    private final String host;
+    private final int port;
+    private final JvmFactory<?> jvmFactory;
+
+    SpawnCommand(final String host, final int port, final JvmFactory<?> jvmFactory) {
+      this.host = host;
+      this.port = port;
+      this.jvmFactory = jvmFactory;
+    }
+
+    @Override
+    public Object execute(final ProcessAgent agent) throws IOException {
+      return agent.spawn(host, port, jvmFactory);
+    }
+  }
+
+  static final class DestroyCommand implements AgentCommand {
+    private static final long serialVersionUID = 1L;
+    private final long id;
+
+    DestroyCommand(final long id) {
+      this.id = id;
+    }
+
+    @Override
+    public Object execute(final ProcessAgent agent) {
+      agent.getChild(id).destroy();
+      return Boolean.TRUE;
+    }
+  }
+
+  static final class WaitForCommand implements AgentCommand {
+    private static final long serialVersionUID = 1L;
+    private final long id;
+
+    WaitForCommand(final long id) {
+      this.id = id;
+    }
+
+    @Override
+    public Object execute(final ProcessAgent agent) throws InterruptedException {
+      final int exitValue = agent.getChild(id).waitFor();
+      agent.children.remove(id);
+      return exitValue;
+    }
+  }
+
+  static final class ExitValueCommand implements AgentCommand {
+    private static final long serialVersionUID = 1L;
+    private final long id;
+
+    ExitValueCommand(final long id) {
+      this.id = id;
+    }
+
+    @Override
+    public Object execute(final ProcessAgent agent) {
+      final int exitValue = agent.getChild(id).exitValue();
+      // The parent remembers the exit value, the child is no longer needed
+      agent.children.remove(id);
+      return exitValue;
+    }
+  }
+
+  private final class ConnectionRunnable implements Runnable {
+    private final Socket socket;
+
+    private ConnectionRunnable(final Socket socket) {
+      this.socket = socket;
+    }
+
+    @Override
+    public void run() {
+      try (final Socket s = socket) {
+        s.setSoTimeout(CONNECT_TIMEOUT);
+        final byte[] challenge = new byte[CHALLENGE_BYTES];
+        random.nextBytes(challenge);
+        s.getOutputStream().write(challenge);
+        final byte[] mac = new byte[MAC_BYTES];
+        ByteStreams.readFully(s.getInputStream(), mac);
+        final byte[] frame = StreamUtils.readFrame(s.getInputStream(), MAX_COMMAND_BYTES);
+        if (!MessageDigest.isEqual(mac, mac(secret, challenge, frame))) {
+          log.warn("Rejected unauthenticated command from {}", s.getRemoteSocketAddress());
+          return;
+        }
+        s.setSoTimeout(0);
+        final AgentCommand command = (AgentCommand) StreamUtils.deserialize(frame);
+        log.debug("Recieved command {} from {}", command, s.getRemoteSocketAddress());
+        Object result;
+        try {
+          result = command.execute(ProcessAgent.this);
+        }
+        catch (Exception e) {
+          log.warn("Exception executing command {}", command, e);
+          result = e;
+        }
+        StreamUtils.writeObject(s.getOutputStream(), result);
+      }
+      catch (IOException | ClassNotFoundException e) {
+        log.warn("Exception handling agent connection", e);
+      }
+    }
+  }
+
+  static Object call(final InetSocketAddress agent, final byte[] secret, final AgentCommand command)
+      throws IOException {
+    try (final Socket socket = new Socket()) {
+      socket.connect(agent, CONNECT_TIMEOUT);
+      final byte[] challenge = new byte[CHALLENGE_BYTES];
+      ByteStreams.readFully(socket.getInputStream(), challenge);
+      final byte[] serialized = StreamUtils.serialize(command);
+      socket.getOutputStream().write(mac(secret, challenge, serialized));
+      StreamUtils.writeFrame(socket.getOutputStream(), serialized, FrameCompressor.NONE);
+      final Object result = StreamUtils.readObject(socket.getInputStream());
+      if (result instanceof Exception) {
+        throw new IOException("Agent " + agent + " failed to execute " + command, (Exception) result);
+      }
+      return result;
+    }
+    catch (ClassNotFoundException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private static byte[] mac(final byte[] secret, final byte[] challenge, final byte[] command) {
+    try {
+      final Mac mac = Mac.getInstance(MAC_ALGORITHM);
+      mac.init(new SecretKeySpec(secret, MAC_ALGORITHM));
+      mac.update(challenge);
+      return mac.doFinal(command);
+    }
+    catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private final ExecutorService executorService = Executors.newCachedThreadPool(THREAD_FACTORY);
+  private final ConcurrentMap<Long, Process> children = new ConcurrentHashMap<>();
+  private final AtomicLong nextId = new AtomicLong();
+  private final ServerSocket server;
+  private final int maxChildren;
+  private final JvmFactory<?> defaultJvmFactory;
+  private final byte[] secret;
+  private final SecureRandom random = new SecureRandom();
+
+  /**
+   * Create an agent listening on the loopback address.
+   */
+  public ProcessAgent(final int port, final int maxChildren, final JvmFactory<?> defaultJvmFactory,
+      final byte[] secret) throws IOException {
+    this(InetAddress.getLoopbackAddress(), port, maxChildren, defaultJvmFactory, secret);
+  }
+
+  public ProcessAgent(final InetAddress bindAddress, final int port, final int maxChildren,
+      final JvmFactory<?> defaultJvmFactory, final byte[] secret) throws IOException {
+    Preconditions.checkArgument(0 < maxChildren);
+    Preconditions.checkArgument(0 < secret.length, "The secret must not be empty");
+    this.server = new ServerSocket(port, 0, bindAddress);
+    this.maxChildren = maxChildren;
+    this.defaultJvmFactory = defaultJvmFactory;
+    this.secret = secret.clone();
+  }
+
+  public InetSocketAddress getAddress() {
+    return new InetSocketAddress(server.getInetAddress(), server.getLocalPort());
+  }
+
+  public int getPort() {
+    return server.getLocalPort();
+  }
+
+  @Override
+  public void run() {
+    log.debug("Accepting connections on port {}", getPort());
+    while (!server.isClosed()) {
+      try {
+        executorService.submit(new ConnectionRunnable(server.accept()));
+      }
+      catch (SocketException e) {
+        log.debug("Server socket closed", e);
+      }
+      catch (IOException e) {
+        log.warn("Exception accepting connection", e);
+      }
+    }
+  }
+
+  synchronized int freeSlots() {
+    int running = 0;
+    for (final Process child : children.values()) {
+      if (isRunning(child)) {
+        running++;
+      }
+    }
+    return maxChildren - running;
+  }
+
+  synchronized long spawn(final String host, final int port, final JvmFactory<?> jvmFactory) throws IOException {
+    if (0 >= freeSlots()) {
+      throw new IllegalStateException("All " + maxChildren + " slots are in use");
+    }
+    final Process process = (null == jvmFactory ? defaultJvmFactory : jvmFactory).start(String.valueOf(port), host);
+    executorService.submit(new OutputForwarder(process.getInputStream(), System.out));
+    executorService.submit(new OutputForwarder(process.getErrorStream(), System.err));
+    final long id = nextId.incrementAndGet();
+    children.put(id, process);
+    log.debug("Spawned child {} connecting to {}:{}", id, host, port);
+    return id;
+  }
+
+  int getChildCount() {
+    return children.size();
+  }
+
+  private Process getChild(final long id) {
+    final Process process = children.get(id);
+    if (null == process) {
+      throw new IllegalArgumentException("No child with id " + id);
+    }
+    return process;
+  }
+
+  private static boolean isRunning(final Process process) {
+    try {
+      process.exitValue();
+      return false;
+    }
+    catch (IllegalThreadStateException e) {
+      return true;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    log.debug("Closing");
+    try {
+      server.close();
+    }
+    finally {
+      executorService.shutdown();
+      for (final Process child : children.values()) {
+        child.destroy();
+      }
+      children.clear();
+    }
+  }
+}
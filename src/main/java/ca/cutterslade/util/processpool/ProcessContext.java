@@ -1,7 +1,36 @@
 package ca.cutterslade.util.processpool;
 
+import java.util.concurrent.Callable;
+
 interface ProcessContext {
   void killProcess();
 
   void setResult(Object result);
+
+  /**
+   * @return when the frame containing the current command was received, in {@link TraceSpan#nowMicros()} time
+   */
+  long getReceivedMicros();
+
+  /**
+   * @return when the current command was deserialized, in {@link TraceSpan#nowMicros()} time
+   */
+  long getDeserializedMicros();
+
+  <T> T callWithTimeout(Callable<T> callable, long timeoutMillis) throws Exception;
+
+  /**
+   * Call the callable on another thread, so that {@link #cancelTask()} can interrupt it.
+   */
+  <T> T callCancellable(Callable<T> callable, long timeoutMillis) throws Exception;
+
+  /**
+   * Interrupt the callable currently running under {@link #callCancellable}, if any.
+   */
+  void cancelTask();
+
+  /**
+   * @return true if a task interrupted by a timeout or cancellation is still running
+   */
+  boolean hasRunawayTask();
 }
@@ -1,6 +1,10 @@
 package ca.cutterslade.util.processpool;
 
+import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.pool.KeyedObjectPool;
 import org.slf4j.Logger;
@@ -8,12 +12,69 @@ import org.slf4j.LoggerFactory;
 
 import ca.cutterslade.util.jvmbuilder.JvmFactory;
 
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 final class ProcessPool implements AutoCloseable {
   private static final Logger log = LoggerFactory.getLogger(ProcessPool.class);
+  /**
+   * Time allowed, beyond the factory's kill timeout, for children to be destroyed when closing.
+   */
+  private static final long CLOSE_GRACE_MILLIS = 1000;
   private final KeyedObjectPool<JvmFactory<?>, ProcessWrapper> pool;
+  private final AbstractProcessWrapperFactory factory;
+
+  ProcessPool(final KeyedObjectPoolProvider provider) {
+    this(provider.get(), provider.getFactory());
+  }
 
-  ProcessPool(final KeyedObjectPool<JvmFactory<?>, ProcessWrapper> pool) {
+  ProcessPool(final KeyedObjectPool<JvmFactory<?>, ProcessWrapper> pool, final AbstractProcessWrapperFactory factory) {
     this.pool = pool;
+    this.factory = Preconditions.checkNotNull(factory);
+  }
+
+  /**
+   * Launch up to {@code count} children, {@code parallelism} at a time; those the pool can not keep are destroyed.
+   */
+  public void prestart(final JvmFactory<?> jvmFactory, final int count, final int parallelism) {
+    Preconditions.checkArgument(0 < parallelism);
+    final JvmFactory<?> key = taskJvmFactory(jvmFactory);
+    log.debug("Starting {} children for {}, {} at a time", count, key, parallelism);
+    final ListeningExecutorService executor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(
+        Math.max(1, Math.min(count, parallelism)),
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ProcessPool-prestart-%d").build()));
+    try {
+      final List<ListenableFuture<Void>> launches = Lists.newArrayListWithCapacity(count);
+      for (int i = 0; i < count; i++) {
+        launches.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            pool.addObject(key);
+            return null;
+          }
+        }));
+      }
+      Futures.allAsList(launches).get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ProcessPoolException(e);
+    }
+    catch (ExecutionException e) {
+      throw new ProcessPoolException(e.getCause());
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+
+  public int getIdleCount(final JvmFactory<?> jvmFactory) {
+    return pool.getNumIdle(taskJvmFactory(jvmFactory));
   }
 
   public ProcessWrapper getWrapper(final JvmFactory<?> jvmFactory) {
@@ -36,23 +97,52 @@ final class ProcessPool implements AutoCloseable {
     }
   }
 
+  public void invalidateWrapper(final JvmFactory<?> jvmFactory, final ProcessWrapper wrapper) {
+    log.debug("Invalidating wrapper {} for {}", wrapper, jvmFactory);
+    try {
+      pool.invalidateObject(jvmFactory, wrapper);
+    }
+    catch (Exception e) {
+      throw new ProcessPoolException(e);
+    }
+  }
+
   @Override
   public void close() {
     log.debug("Closing");
     try {
+      // Idle children are sent the kill command one after the other but exit in parallel
       pool.close();
+      if (!factory.awaitDestroyed(factory.getKillTimeoutMillis() + CLOSE_GRACE_MILLIS, TimeUnit.MILLISECONDS)) {
+        log.warn("Not all children exited while closing");
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ProcessPoolException(e);
     }
     catch (Exception e) {
       throw new ProcessPoolException(e);
     }
   }
 
-  public JvmFactory<?> getJvmFactory(final Callable<?> callable, final JvmFactory<?> defaultJvmFactory) {
+  public JvmFactory<?> getJvmFactory(final Object callable, final JvmFactory<?> defaultJvmFactory) {
     final JvmFactory<?> base = callable instanceof SpecifiesJvmFactory ?
         ((SpecifiesJvmFactory) callable).getJvmFactory() : defaultJvmFactory;
     log.debug("Getting JVM Factory for {} based on {}", callable, base);
+    return taskJvmFactory(base);
+  }
+
+  /**
+   * The key used to pool children launched based on the specified JVM factory.
+   */
+  static JvmFactory<?> taskJvmFactory(final JvmFactory<?> base) {
     return base.clearProgram()
         .setMainClass(ProcessTask.class)
         .build();
   }
+
+  public long getTimeoutMillis(final Object task) {
+    return task instanceof SpecifiesTimeout ? ((SpecifiesTimeout) task).getTimeoutMillis() : 0;
+  }
 }
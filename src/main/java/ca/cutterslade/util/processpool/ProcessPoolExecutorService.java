@@ -1,7 +1,10 @@
 package ca.cutterslade.util.processpool;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -21,7 +24,9 @@ import ca.cutterslade.util.jvmbuilder.JvmFactory;
 import ca.cutterslade.util.jvmbuilder.JvmFactoryBuilder;
 
 import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.Collections2;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
@@ -51,18 +56,52 @@ public final class ProcessPoolExecutorService implements ListeningExecutorServic
     }
   }
 
+  /**
+   * Optional behaviour of the service; by default tasks are not traced, hedged or run inline.
+   */
+  static final class Options {
+    private Tracer tracer = Tracer.DISABLED;
+    private HedgingPolicy hedging;
+    private InlinePolicy inline;
+
+    Options setTracer(final Tracer tracer) {
+      this.tracer = Preconditions.checkNotNull(tracer);
+      return this;
+    }
+
+    /**
+     * {@link Idempotent} tasks are hedged according to this policy.
+     */
+    Options setHedging(@Nullable final HedgingPolicy hedging) {
+      this.hedging = hedging;
+      return this;
+    }
+
+    /**
+     * {@link InlineSafe} tasks are run on the service's threads instead of in a child according to this policy.
+     */
+    Options setInline(@Nullable final InlinePolicy inline) {
+      this.inline = inline;
+      return this;
+    }
+  }
+
   @SuppressWarnings("rawtypes")
   private final Function processWrapperFunction = new Function<Callable<?>, ProcessWrapperCallable<?>>() {
     @Nullable
     @Override
     public ProcessWrapperCallable<?> apply(@Nullable final Callable<?> input) {
-      return new ProcessWrapperCallable<>(pool, defaultJvmFactory, input);
+      return new ProcessWrapperCallable<>(pool, defaultJvmFactory, input, tracer, hedging, inline, accounting);
     }
   };
   private final ExecutorService shutdownService = Executors.newSingleThreadExecutor(SHUTDOWN_THREAD_FACTORY);
   private final ListeningExecutorService executorService;
   private final ProcessPool pool;
   private final JvmFactory<?> defaultJvmFactory;
+  private final Tracer tracer;
+  private final HedgingPolicy hedging;
+  private final InlinePolicy inline;
+  private final ResourceAccounting accounting = new ResourceAccounting();
 
   ProcessPoolExecutorService(final ListeningExecutorService executorService, final ProcessPool pool,
       final JvmFactoryBuilder<?> defaultJvmFactory) {
@@ -71,12 +110,27 @@ public final class ProcessPoolExecutorService implements ListeningExecutorServic
 
   ProcessPoolExecutorService(final ListeningExecutorService executorService, final ProcessPool pool,
       final JvmFactory<?> defaultJvmFactory) {
+    this(executorService, pool, defaultJvmFactory, new Options());
+  }
+
+  ProcessPoolExecutorService(final ListeningExecutorService executorService, final ProcessPool pool,
+      final JvmFactory<?> defaultJvmFactory, final Options options) {
     this.executorService = executorService;
     this.pool = pool;
     this.defaultJvmFactory = defaultJvmFactory;
+    this.tracer = options.tracer;
+    this.hedging = options.hedging;
+    this.inline = options.inline;
     shutdownService.submit(new ShutdownRunnable());
   }
 
+  /**
+   * Write the spans of recently traced tasks to a file in the Chrome trace event format.
+   */
+  public void writeTrace(@Nonnull final File file) throws IOException {
+    tracer.writeChromeTrace(file);
+  }
+
   private <T> ProcessWrapperCallable<T> wrapper(final Callable<T> task) {
     return this.<T>wrapperFunction().apply(task);
   }
@@ -85,15 +139,35 @@ public final class ProcessPoolExecutorService implements ListeningExecutorServic
     return (Function<Callable<T>, ProcessWrapperCallable<T>>) processWrapperFunction;
   }
 
+  /**
+   * @return the resources used by tasks run so far, by the class of the submitted callable or runnable
+   */
+  @Nonnull
+  public Map<Class<?>, TaskUsage> getUsageByTaskClass() {
+    return accounting.getByTaskClass();
+  }
+
+  /**
+   * @return the resources used by tasks run so far, by the JVM factory of the children which ran them
+   */
+  @Nonnull
+  public Map<JvmFactory<?>, TaskUsage> getUsageByJvmFactory() {
+    return accounting.getByJvmFactory();
+  }
+
+  /**
+   * The returned future also reports the resources used by the task.
+   */
   @Nonnull
   @Override
-  public <T> ListenableFuture<T> submit(@Nonnull final Callable<T> task) {
-    return executorService.submit(wrapper(task));
+  public <T> AccountedFuture<T> submit(@Nonnull final Callable<T> task) {
+    final ProcessWrapperCallable<T> wrapper = wrapper(task);
+    return new ProcessWrapperListenableFuture<>(wrapper, executorService.submit(wrapper));
   }
 
   @Nonnull
   @Override
-  public <T> ListenableFuture<T> submit(@Nonnull final Runnable task, final T result) {
+  public <T> AccountedFuture<T> submit(@Nonnull final Runnable task, final T result) {
     return submit(callable(task, result));
   }
 
@@ -101,12 +175,12 @@ public final class ProcessPoolExecutorService implements ListeningExecutorServic
     //noinspection CastConflictsWithInstanceof
     return task instanceof SpecifiesJvmFactory ?
         new JvmCallable<>((R) task, result) :
-        Executors.callable(task, result);
+        new RunnableCallable<>(task, result);
   }
 
   @Nonnull
   @Override
-  public ListenableFuture<Void> submit(@Nonnull final Runnable task) {
+  public AccountedFuture<Void> submit(@Nonnull final Runnable task) {
     return submit(task, null);
   }
 
@@ -138,6 +212,41 @@ public final class ProcessPoolExecutorService implements ListeningExecutorServic
     return executorService.invokeAny(Collections2.transform(tasks, this.<T>wrapperFunction()), timeout, unit);
   }
 
+  @Nonnull
+  public <A, B> ListenableFuture<List<B>> map(@Nonnull final Iterable<? extends A> input,
+      @Nonnull final Function<? super A, ? extends B> function) {
+    return map(input, function, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Apply the serializable function to each element in up to {@code parallelism} children, keeping input order.
+   */
+  @Nonnull
+  public <A, B> ListenableFuture<List<B>> map(@Nonnull final Iterable<? extends A> input,
+      @Nonnull final Function<? super A, ? extends B> function, final int parallelism) {
+    Preconditions.checkArgument(0 < parallelism, "parallelism must be positive: %s", parallelism);
+    return Futures.transform(new MapReduceJob<A, B>(pool, defaultJvmFactory, input, function, null)
+        .start(executorService, parallelism), MapReduceJob.<B>flatten());
+  }
+
+  @Nonnull
+  public <A, B> ListenableFuture<B> mapReduce(@Nonnull final Iterable<? extends A> input,
+      @Nonnull final Function<? super A, ? extends B> function, @Nonnull final Combiner<B> combiner) {
+    return mapReduce(input, function, combiner, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * The combiner must be associative but need not be commutative; the result is null for an empty input.
+   */
+  @Nonnull
+  public <A, B> ListenableFuture<B> mapReduce(@Nonnull final Iterable<? extends A> input,
+      @Nonnull final Function<? super A, ? extends B> function, @Nonnull final Combiner<B> combiner,
+      final int parallelism) {
+    Preconditions.checkArgument(0 < parallelism, "parallelism must be positive: %s", parallelism);
+    return Futures.transform(new MapReduceJob<A, B>(pool, defaultJvmFactory, input, function, combiner)
+        .start(executorService, parallelism), MapReduceJob.reduce(combiner));
+  }
+
   @Override
   public void execute(@Nonnull final Runnable command) {
     submit(command);
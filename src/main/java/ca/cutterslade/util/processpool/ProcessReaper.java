@@ -0,0 +1,96 @@
+package ca.cutterslade.util.processpool;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Retires children in the background, destroying those which do not exit within the kill timeout.
+ */
+final class ProcessReaper {
+  private static final Logger log = LoggerFactory.getLogger(ProcessReaper.class);
+
+  private final ExecutorService executor = Executors.newCachedThreadPool(
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ProcessReaper-%d").build());
+  private final long killTimeoutMillis;
+  private int pending;
+
+  ProcessReaper(final long killTimeoutMillis) {
+    this.killTimeoutMillis = killTimeoutMillis;
+  }
+
+  long getKillTimeoutMillis() {
+    return killTimeoutMillis;
+  }
+
+  /**
+   * @param afterExit run once the child has exited or been destroyed
+   */
+  void reap(final ProcessWrapper wrapper, @Nullable final Runnable afterExit) {
+    synchronized (this) {
+      pending++;
+    }
+    try {
+      wrapper.sendKill();
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            wrapper.awaitExit(killTimeoutMillis);
+          }
+          catch (InterruptedException e) {
+            log.warn("Interrupted waiting for {} to exit", wrapper, e);
+          }
+          catch (RuntimeException e) {
+            // Children on a remote agent can no longer be checked once the agent has gone away
+            log.warn("Exception waiting for {} to exit", wrapper, e);
+          }
+          finally {
+            exited(afterExit);
+          }
+        }
+      });
+    }
+    catch (RuntimeException e) {
+      exited(afterExit);
+      throw e;
+    }
+  }
+
+  private void exited(@Nullable final Runnable afterExit) {
+    try {
+      if (null != afterExit) {
+        afterExit.run();
+      }
+    }
+    finally {
+      synchronized (this) {
+        pending--;
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * @return true if every child passed to {@link #reap} so far exited within the timeout
+   */
+  synchronized boolean awaitExits(final long timeout, final TimeUnit unit) throws InterruptedException {
+    final long deadline = System.nanoTime() + unit.toNanos(timeout);
+    while (0 < pending) {
+      final long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+      if (0 >= remainingMillis) {
+        log.warn("{} children have not exited", pending);
+        return false;
+      }
+      wait(remainingMillis);
+    }
+    return true;
+  }
+}
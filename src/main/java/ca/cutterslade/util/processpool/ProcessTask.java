@@ -1,32 +1,147 @@
 package ca.cutterslade.util.processpool;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 public final class ProcessTask implements Closeable {
   private static final Logger log = LoggerFactory.getLogger(ProcessTask.class);
 
+  private static final ThreadFactory THREAD_FACTORY =
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ProcessTask-timed-task-%d").build();
+  private static final long CANCEL_POLL_MILLIS = 10;
+  /**
+   * Time allowed for an interrupted task to stop before it is considered a runaway.
+   */
+  private static final long STOP_GRACE_MILLIS = 1000;
+  private static final Object NO_RESULT = new Object();
+
+  /**
+   * Load classes missing from the class path from the parent.
+   */
+  static final String REMOTE_CLASSES_OPTION = "--remote-classes";
+  /**
+   * As {@link #REMOTE_CLASSES_OPTION}, caching the classes in the specified directory.
+   */
+  static final String CLASS_CACHE_OPTION = "--class-cache=";
+  /**
+   * Pin the process to the specified CPUs, in the format accepted by {@code taskset -c}.
+   */
+  static final String CPUS_OPTION = "--cpus=";
+
   public static void main(@Nonnull final String[] args) throws IOException, ClassNotFoundException {
     log.debug("Starting slave process");
-    Preconditions.checkArgument(1 == args.length);
+    Preconditions.checkArgument(1 <= args.length);
     final int port = Integer.parseInt(args[0]);
-    try (ProcessTask task = new ProcessTask(port)) {
+    InetAddress host = InetAddress.getLocalHost();
+    boolean remoteClasses = false;
+    File classCache = null;
+    for (final String arg : Arrays.asList(args).subList(1, args.length)) {
+      if (REMOTE_CLASSES_OPTION.equals(arg)) {
+        remoteClasses = true;
+      }
+      else if (arg.startsWith(CLASS_CACHE_OPTION)) {
+        remoteClasses = true;
+        classCache = new File(arg.substring(CLASS_CACHE_OPTION.length()));
+      }
+      else if (arg.startsWith(CPUS_OPTION)) {
+        setAffinity(arg.substring(CPUS_OPTION.length()));
+      }
+      else {
+        host = InetAddress.getByName(arg);
+      }
+    }
+    try (ProcessTask task = new ProcessTask(host, port, remoteClasses, classCache)) {
       task.executeCommands();
     }
     log.debug("Slave process main() exiting");
   }
 
+  /**
+   * Pin every thread of this process, including those started later, to the CPUs.
+   */
+  private static void setAffinity(final String cpus) {
+    final String name = ManagementFactory.getRuntimeMXBean().getName();
+    final String pid = name.substring(0, name.indexOf('@'));
+    try {
+      final Process taskset =
+          new ProcessBuilder("taskset", "-a", "-p", "-c", cpus, pid).redirectErrorStream(true).start();
+      final String output = new String(ByteStreams.toByteArray(taskset.getInputStream()));
+      if (0 == taskset.waitFor()) {
+        log.debug("Pinned to CPUs {}", cpus);
+      }
+      else {
+        log.warn("Could not pin process to CPUs {}: {}", cpus, output);
+      }
+    }
+    catch (IOException e) {
+      log.warn("Could not pin process to CPUs {}", cpus, e);
+    }
+    catch (InterruptedException e) {
+      log.warn("Interrupted pinning process to CPUs {}", cpus, e);
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Notes when a callable run on another thread returns.
+   */
+  private static final class StoppableCallable<T> implements Callable<T> {
+    private final Callable<T> callable;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    private StoppableCallable(final Callable<T> callable) {
+      this.callable = callable;
+    }
+
+    @Override
+    public T call() throws Exception {
+      try {
+        return callable.call();
+      }
+      finally {
+        stopped.countDown();
+      }
+    }
+
+    boolean awaitStop() throws InterruptedException {
+      return stopped.await(STOP_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public String toString() {
+      return callable.toString();
+    }
+  }
+
   private final ProcessContext context = new ProcessContext() {
     @Override
     public void killProcess() {
@@ -37,20 +152,125 @@ public final class ProcessTask implements Closeable {
     public void setResult(final Object result) {
       ProcessTask.this.result = result;
     }
+
+    @Override
+    public long getReceivedMicros() {
+      return receivedMicros;
+    }
+
+    @Override
+    public long getDeserializedMicros() {
+      return deserializedMicros;
+    }
+
+    @Override
+    public <T> T callWithTimeout(final Callable<T> callable, final long timeoutMillis) throws Exception {
+      final StoppableCallable<T> stoppable = new StoppableCallable<>(callable);
+      final Future<T> future = executor.submit(stoppable);
+      try {
+        return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+      }
+      catch (TimeoutException e) {
+        future.cancel(true);
+        log.warn("Task {} did not complete within {} ms; interrupted", callable, timeoutMillis);
+        awaitStop(stoppable);
+        throw new TimeoutException("Task did not complete within " + timeoutMillis + " ms");
+      }
+      catch (ExecutionException e) {
+        Throwables.propagateIfPossible(e.getCause(), Exception.class);
+        throw e;
+      }
+    }
+
+    @Override
+    public <T> T callCancellable(final Callable<T> callable, final long timeoutMillis) throws Exception {
+      final StoppableCallable<T> stoppable = new StoppableCallable<>(callable);
+      final Future<T> future = executor.submit(stoppable);
+      task = future;
+      try {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (true) {
+          try {
+            return future.get(CANCEL_POLL_MILLIS, TimeUnit.MILLISECONDS);
+          }
+          catch (TimeoutException e) {
+            if (0 < timeoutMillis && 0 <= System.nanoTime() - deadline) {
+              future.cancel(true);
+              log.warn("Task {} did not complete within {} ms; interrupted", callable, timeoutMillis);
+              awaitStop(stoppable);
+              throw new TimeoutException("Task did not complete within " + timeoutMillis + " ms");
+            }
+            executePendingCommands();
+          }
+        }
+      }
+      catch (CancellationException e) {
+        awaitStop(stoppable);
+        throw e;
+      }
+      catch (ExecutionException e) {
+        Throwables.propagateIfPossible(e.getCause(), Exception.class);
+        throw e;
+      }
+      finally {
+        task = null;
+      }
+    }
+
+    @Override
+    public boolean hasRunawayTask() {
+      return runaway;
+    }
+
+    @Override
+    public void cancelTask() {
+      final Future<?> current = task;
+      if (null == current) {
+        log.debug("No task to cancel");
+      }
+      else {
+        log.debug("Cancelling task");
+        current.cancel(true);
+      }
+    }
   };
 
+  private final ExecutorService executor = Executors.newCachedThreadPool(THREAD_FACTORY);
+
   private final Socket socket;
   private final InputStream input;
   private final OutputStream output;
+  private final FrameCompressor compressor;
+  private final Object channelLock = new Object();
+  private final ClassLoader classLoader;
+  private volatile Future<?> task;
+  private volatile boolean runaway;
   private boolean killed;
   private Object result;
+  private long receivedMicros;
+  private long deserializedMicros;
 
   public ProcessTask(final int port) throws IOException {
+    this(InetAddress.getLocalHost(), port);
+  }
+
+  public ProcessTask(final InetAddress host, final int port) throws IOException {
+    this(host, port, false, null);
+  }
+
+  public ProcessTask(final InetAddress host, final int port, final boolean remoteClasses,
+      @Nullable final File classCache) throws IOException {
     boolean success = false;
-    this.socket = new Socket(InetAddress.getLocalHost(), port);
+    this.socket = new Socket(host, port);
     try {
       this.input = socket.getInputStream();
       this.output = socket.getOutputStream();
+      this.compressor = FrameCompressor.forConnection(socket);
+      if (null != classCache) {
+        Files.createDirectories(classCache.toPath());
+      }
+      this.classLoader = remoteClasses ? new RemoteClassLoader(ProcessTask.class.getClassLoader(), input, output,
+          channelLock, classCache, context) : ProcessTask.class.getClassLoader();
       success = true;
     }
     finally {
@@ -60,27 +280,64 @@ public final class ProcessTask implements Closeable {
     }
   }
 
-  private void executeCommands() throws IOException, ClassNotFoundException {
+  void executeCommands() throws IOException, ClassNotFoundException {
     log.debug("Starting command loop");
+    // Threads running timed tasks are created by this thread, and inherit its context class loader
+    Thread.currentThread().setContextClassLoader(classLoader);
     while (!killed) {
       final ProcessCommand command = readCommand();
       log.debug("Recieved command {}", command);
+      result = NO_RESULT;
       command.execute(context);
-      writeResult();
+      // Commands such as a cancellation which arrives after its task has completed produce no result
+      if (NO_RESULT != result) {
+        writeResult();
+      }
+    }
+  }
+
+  /**
+   * Execute any commands the parent has sent while a task is running; these do not produce results.
+   */
+  private void executePendingCommands() throws IOException, ClassNotFoundException {
+    synchronized (channelLock) {
+      while (0 < input.available()) {
+        final ProcessCommand command =
+            (ProcessCommand) StreamUtils.deserialize(StreamUtils.readFrame(input), classLoader);
+        log.debug("Recieved command {} while running task", command);
+        command.execute(context);
+      }
     }
   }
 
   private void writeResult() throws IOException {
     log.debug("Writing command result {}", result);
-    StreamUtils.writeObject(output, result);
+    synchronized (channelLock) {
+      StreamUtils.writeObject(output, result, compressor);
+    }
   }
 
   private ProcessCommand readCommand() throws IOException, ClassNotFoundException {
-    return (ProcessCommand) StreamUtils.readObject(input);
+    synchronized (channelLock) {
+      final byte[] frame = StreamUtils.readFrame(input);
+      receivedMicros = TraceSpan.nowMicros();
+      final ProcessCommand command = (ProcessCommand) StreamUtils.deserialize(frame, classLoader);
+      deserializedMicros = TraceSpan.nowMicros();
+      return command;
+    }
+  }
+
+  private void awaitStop(final StoppableCallable<?> stoppable) throws InterruptedException {
+    if (!stoppable.awaitStop()) {
+      log.warn("Task {} did not stop within {} ms of being interrupted", stoppable, STOP_GRACE_MILLIS);
+      runaway = true;
+    }
   }
 
   @Override
   public void close() throws IOException {
+    executor.shutdownNow();
+    compressor.end();
     socket.close();
   }
 }
@@ -6,51 +6,153 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
 import java.net.Socket;
+import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.annotation.Nullable;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.primitives.Ints;
+
 final class ProcessWrapper implements Closeable {
   private static final Logger log = LoggerFactory.getLogger(ProcessWrapper.class);
 
   private static final class ThrowableResult implements Serializable {
     private static final long serialVersionUID = 1L;
     private final Throwable throwable;
+    private final boolean runaway;
 
-    ThrowableResult(final Throwable throwable) {
+    ThrowableResult(final Throwable throwable, final boolean runaway) {
       this.throwable = throwable;
+      this.runaway = runaway;
     }
 
     Throwable getThrowable() {
       return throwable;
     }
+
+    /**
+     * @return true if the task was interrupted but did not stop, and is still running in the child
+     */
+    boolean isRunaway() {
+      return runaway;
+    }
+  }
+
+  /**
+   * The result of a command, with the task's usage, its trace spans and the child's statistics when requested.
+   */
+  private static final class ExecuteResult implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private final Object result;
+    private final long receivedMicros;
+    private final long executedMicros;
+    private final List<TraceSpan> spans;
+    private final ChildStats stats;
+    // Usage is sent as primitives, each class in a frame adds noticeably to the cost of serialization
+    private final long cpuNanos;
+    private final long allocatedBytes;
+    private final long wallNanos;
+
+    ExecuteResult(final Object result, final long receivedMicros, final long executedMicros,
+        @Nullable final List<TraceSpan> spans, @Nullable final ChildStats stats, @Nullable final TaskUsage usage) {
+      this.result = result;
+      this.receivedMicros = receivedMicros;
+      this.executedMicros = executedMicros;
+      this.spans = spans;
+      this.stats = stats;
+      this.cpuNanos = null == usage ? 0 : usage.getCpuNanos();
+      this.allocatedBytes = null == usage ? 0 : usage.getAllocatedBytes();
+      this.wallNanos = null == usage ? -1 : usage.getWallNanos();
+    }
+
+    @Nullable
+    TaskUsage getUsage() {
+      return 0 > wallNanos ? null : new TaskUsage(1, cpuNanos, allocatedBytes, wallNanos);
+    }
   }
 
   private static final class ExecuteCommand implements ProcessCommand {
     private static final long serialVersionUID = 1L;
     private final Callable<?> callable;
+    private final long timeoutMillis;
+    private final long traceId;
+    private final boolean cancellable;
+    private final boolean reportStats;
+    private final boolean metered;
 
-    private ExecuteCommand(final Callable<?> callable) {
+    private ExecuteCommand(final Callable<?> callable, final long timeoutMillis, final long traceId,
+        final boolean cancellable, final boolean reportStats, final boolean metered) {
       this.callable = callable;
+      this.timeoutMillis = timeoutMillis;
+      this.traceId = traceId;
+      this.cancellable = cancellable;
+      this.reportStats = reportStats;
+      this.metered = metered;
     }
 
     @Override
     public void execute(final ProcessContext context) {
+      final long startMicros = TraceSpan.nowMicros();
+      final MeteredCallable<?> meteredCallable = metered ? new MeteredCallable<>(callable) : null;
+      final Callable<?> task = metered ? meteredCallable : callable;
       Object result = null;
       try {
-        result = callable.call();
+        if (cancellable) {
+          result = context.callCancellable(task, timeoutMillis);
+        }
+        else {
+          result = 0 < timeoutMillis ? context.callWithTimeout(task, timeoutMillis) : task.call();
+        }
       }
       catch (Throwable e) {
-        result = new ThrowableResult(e);
+        result = new ThrowableResult(e, context.hasRunawayTask());
         if (e instanceof Error) {
           throw (Error) e;
         }
       }
       finally {
-        context.setResult(result);
+        context.setResult(0 == traceId && !reportStats && !metered ?
+            result : envelope(context, result, startMicros, metered ? meteredCallable.usage : null));
+      }
+    }
+
+    private ExecuteResult envelope(final ProcessContext context, final Object result, final long startMicros,
+        @Nullable final TaskUsage usage) {
+      final long executedMicros = TraceSpan.nowMicros();
+      final List<TraceSpan> spans = 0 == traceId ? null : ImmutableList.of(
+          TraceSpan.of("child deserialize", traceId, context.getReceivedMicros(), context.getDeserializedMicros()),
+          TraceSpan.of("child execute", traceId, startMicros, executedMicros));
+      return new ExecuteResult(result, context.getReceivedMicros(), executedMicros, spans,
+          reportStats ? ChildStats.sample(executedMicros - startMicros) : null, usage);
+    }
+  }
+
+  /**
+   * Measures the resources used by a callable on whichever thread of the child runs it.
+   */
+  private static final class MeteredCallable<T> implements Callable<T> {
+    private final Callable<T> callable;
+    private volatile TaskUsage usage;
+
+    private MeteredCallable(final Callable<T> callable) {
+      this.callable = callable;
+    }
+
+    @Override
+    public T call() throws Exception {
+      final TaskUsage.Meter meter = new TaskUsage.Meter();
+      try {
+        return callable.call();
+      }
+      finally {
+        usage = meter.stop();
       }
     }
   }
@@ -66,6 +168,11 @@ final class ProcessWrapper implements Closeable {
   }
 
   private static final String PING_RESPONSE = "pong";
+  /**
+   * Time beyond a task's own timeout allowed for the child to report that it timed out.
+   */
+  private static final int RESPONSE_GRACE_MILLIS = 5000;
+  private static final long MAX_EXIT_POLL_MILLIS = 200;
   private static final ProcessCommand KILL_COMMAND = new ProcessCommand() {
     private static final long serialVersionUID = 1L;
 
@@ -74,11 +181,30 @@ final class ProcessWrapper implements Closeable {
       context.killProcess();
     }
   };
+  private static final ProcessCommand CANCEL_COMMAND = new ProcessCommand() {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public void execute(final ProcessContext context) {
+      context.cancelTask();
+    }
+  };
   private final Process process;
   private final Socket socket;
   private final InputStream input;
   private final OutputStream output;
+  private final int readTimeout;
+  private final FrameCompressor compressor;
   private final AtomicBoolean running = new AtomicBoolean();
+  /**
+   * Guards writes, which may come from a thread cancelling the running task as well as the one running it.
+   */
+  private final Object writeLock = new Object();
+  private volatile int statsInterval;
+  private int runs;
+  private volatile ChildStats stats;
+  private volatile TaskUsage usage;
+  private volatile boolean broken;
 
   ProcessWrapper(final Process process, final Socket socket) throws IOException {
     this.process = process;
@@ -86,6 +212,8 @@ final class ProcessWrapper implements Closeable {
     try {
       this.input = socket.getInputStream();
       this.output = socket.getOutputStream();
+      this.readTimeout = socket.getSoTimeout();
+      this.compressor = FrameCompressor.forConnection(socket);
     }
     catch (Throwable t) {
       socket.close();
@@ -94,6 +222,14 @@ final class ProcessWrapper implements Closeable {
   }
 
   void kill() throws InterruptedException {
+    sendKill();
+    process.waitFor();
+  }
+
+  /**
+   * Ask the child to exit without waiting; a child busy running a task is destroyed.
+   */
+  void sendKill() {
     if (running.get()) {
       process.destroy();
     }
@@ -106,25 +242,195 @@ final class ProcessWrapper implements Closeable {
         process.destroy();
       }
     }
-    process.waitFor();
+  }
+
+  /**
+   * @return true if the child exited after {@link #sendKill()} within the timeout; otherwise it is destroyed
+   */
+  boolean awaitExit(final long timeoutMillis) throws InterruptedException {
+    try {
+      final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+      // Poll with a growing interval; for children on remote agents each check is a round trip
+      for (long pollMillis = 5; ; pollMillis = Math.min(MAX_EXIT_POLL_MILLIS, pollMillis * 2)) {
+        try {
+          process.exitValue();
+          return true;
+        }
+        catch (IllegalThreadStateException e) {
+          final long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+          if (0 >= remainingMillis) {
+            break;
+          }
+          Thread.sleep(Math.min(pollMillis, remainingMillis));
+        }
+      }
+      log.warn("{} did not exit within {} ms, destroying it", this, timeoutMillis);
+      process.destroy();
+      process.waitFor();
+      return false;
+    }
+    finally {
+      compressor.end();
+      try {
+        socket.close();
+      }
+      catch (IOException e) {
+        log.debug("Exception closing socket of {}", this, e);
+      }
+    }
   }
 
   <T> T run(final Callable<T> callable) throws ExecutionException {
-    running.set(true);
+    return run(callable, 0);
+  }
+
+  /**
+   * A positive timeout is enforced by the child, which then reports a {@link java.util.concurrent.TimeoutException}.
+   */
+  <T> T run(final Callable<T> callable, final long timeoutMillis) throws ExecutionException {
+    return run(callable, timeoutMillis, null, false, false);
+  }
+
+  /**
+   * Run the task measuring its usage; a cancellable task runs on another thread of the child so it can be cancelled.
+   */
+  <T> T run(final Callable<T> callable, final long timeoutMillis, @Nullable final Trace trace,
+      final boolean cancellable) throws ExecutionException {
+    return run(callable, timeoutMillis, trace, cancellable, true);
+  }
+
+  private <T> T run(final Callable<T> callable, final long timeoutMillis, @Nullable final Trace trace,
+      final boolean cancellable, final boolean metered) throws ExecutionException {
     try {
-      StreamUtils.writeObject(output, new ExecuteCommand(callable));
-      final Object result = StreamUtils.readObject(input);
+      socket.setSoTimeout(0 < timeoutMillis ? Ints.saturatedCast(timeoutMillis + RESPONSE_GRACE_MILLIS) : readTimeout);
+      final long serializeMicros = TraceSpan.nowMicros();
+      synchronized (writeLock) {
+        running.set(true);
+        usage = null;
+        // Only tasks count towards the interval; pings and warm-ups would skew the tuner's samples
+        final boolean reportStats = metered && 0 < statsInterval && 0 == runs++ % statsInterval;
+        StreamUtils.writeObject(output, new ExecuteCommand(callable, timeoutMillis, null == trace ? 0 : trace.getId(),
+            cancellable, reportStats, metered), compressor);
+      }
+      final long sentMicros = TraceSpan.nowMicros();
+      byte[] frame = StreamUtils.readFrame(input);
+      long arrivedMicros = TraceSpan.nowMicros();
+      Object result = StreamUtils.deserialize(frame);
+      while (result instanceof RemoteClassLoader.ClassRequest) {
+        log.debug("Serving {}", result);
+        final RemoteClassLoader.ClassResponse response =
+            ((RemoteClassLoader.ClassRequest) result).respond(classLoader(callable));
+        synchronized (writeLock) {
+          StreamUtils.writeObject(output, response, compressor);
+        }
+        frame = StreamUtils.readFrame(input);
+        arrivedMicros = TraceSpan.nowMicros();
+        result = StreamUtils.deserialize(frame);
+      }
+      if (result instanceof ExecuteResult) {
+        final ExecuteResult executeResult = (ExecuteResult) result;
+        result = executeResult.result;
+        if (null != executeResult.stats) {
+          stats = executeResult.stats;
+        }
+        usage = executeResult.getUsage();
+        if (null != trace) {
+          trace.add("serialize", serializeMicros, sentMicros);
+          trace.add("transit", sentMicros, executeResult.receivedMicros);
+          trace.addAll(executeResult.spans);
+          trace.add("return", executeResult.executedMicros, arrivedMicros);
+          trace.add("deserialize", arrivedMicros, TraceSpan.nowMicros());
+        }
+      }
       if (result instanceof ThrowableResult) {
-        throw new ExecutionException(((ThrowableResult) result).getThrowable());
+        final ThrowableResult throwableResult = (ThrowableResult) result;
+        if (throwableResult.isRunaway()) {
+          log.warn("{} is still running a task which did not stop when interrupted, it will not be reused", this);
+          broken = true;
+        }
+        throw new ExecutionException(throwableResult.getThrowable());
       }
       return (T) result;
     }
-    catch (IOException | ClassNotFoundException e) {
+    catch (IOException e) {
+      // The state of the stream is unknown, it can not be used for another command
+      broken = true;
+      throw new ExecutionException(e);
+    }
+    catch (ClassNotFoundException e) {
       throw new ExecutionException(e);
     }
     finally {
-      running.set(false);
+      synchronized (writeLock) {
+        running.set(false);
+      }
+    }
+  }
+
+  /**
+   * @return true if a cancellable task was running and the child was asked to interrupt it
+   */
+  boolean cancel() {
+    synchronized (writeLock) {
+      if (!running.get()) {
+        return false;
+      }
+      try {
+        StreamUtils.writeObject(output, CANCEL_COMMAND, compressor);
+        return true;
+      }
+      catch (IOException e) {
+        log.warn("Exception writing cancel command", e);
+        return false;
+      }
+    }
+  }
+
+  /**
+   * @return the user's task adapted by the callable, or the callable itself
+   */
+  static Object unwrap(final Callable<?> callable) {
+    return callable instanceof WrapsTask ? ((WrapsTask) callable).getTask() : callable;
+  }
+
+  private static ClassLoader classLoader(final Callable<?> callable) {
+    ClassLoader classLoader = unwrap(callable).getClass().getClassLoader();
+    if (null == classLoader) {
+      classLoader = Thread.currentThread().getContextClassLoader();
     }
+    return null == classLoader ? ClassLoader.getSystemClassLoader() : classLoader;
+  }
+
+  /**
+   * Have the child report its statistics with one in every {@code interval} results; zero disables reporting.
+   */
+  void setStatsInterval(final int interval) {
+    statsInterval = interval;
+  }
+
+  /**
+   * @return the statistics reported since the last call, or null if none were reported
+   */
+  @Nullable
+  ChildStats takeStats() {
+    final ChildStats taken = stats;
+    stats = null;
+    return taken;
+  }
+
+  /**
+   * @return the resources used by the most recent task, or null if they could not be measured
+   */
+  @Nullable
+  TaskUsage getLastUsage() {
+    return usage;
+  }
+
+  /**
+   * @return true if the child can not be used for another task
+   */
+  boolean isBroken() {
+    return broken;
   }
 
   void ping() throws Exception {
@@ -144,6 +450,7 @@ final class ProcessWrapper implements Closeable {
       Thread.currentThread().interrupt();
     }
     finally {
+      compressor.end();
       socket.close();
     }
   }
@@ -1,62 +1,311 @@
 package ca.cutterslade.util.processpool;
 
+import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nullable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import ca.cutterslade.util.jvmbuilder.JvmFactory;
 
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.SettableFuture;
+
 final class ProcessWrapperCallable<T> implements Callable<T> {
   private static final Logger log = LoggerFactory.getLogger(ProcessWrapperCallable.class);
 
+  /**
+   * One run of the task on a child; a hedged task may have two.
+   */
+  private final class Attempt implements Runnable {
+    private ProcessWrapper wrapper;
+    private boolean finished;
+
+    private Attempt() {
+      synchronized (mutex) {
+        outstanding++;
+      }
+    }
+
+    T call() throws Exception {
+      synchronized (mutex) {
+        if (cancelled || outcome.isDone()) {
+          throw new CancellationException();
+        }
+        final long borrowMicros = TraceSpan.nowMicros();
+        wrapper = pool.getWrapper(jvmFactory);
+        if (null != trace) {
+          trace.add("borrow", borrowMicros, TraceSpan.nowMicros());
+        }
+        attempts.add(this);
+      }
+      try {
+        final long remainingMillis = remainingMillis();
+        final long startNanos = System.nanoTime();
+        try {
+          return wrapper.run(callable, remainingMillis, trace, null != hedging);
+        }
+        finally {
+          final TaskUsage attemptUsage = wrapper.getLastUsage();
+          record(attemptUsage, jvmFactory);
+          if (null != inline) {
+            inline.recordRemote(taskClass, System.nanoTime() - startNanos, attemptUsage);
+          }
+        }
+      }
+      finally {
+        synchronized (mutex) {
+          finished = true;
+          attempts.remove(this);
+        }
+        if (wrapper.isBroken()) {
+          pool.invalidateWrapper(jvmFactory, wrapper);
+        }
+        else {
+          pool.returnWrapper(jvmFactory, wrapper);
+        }
+      }
+    }
+
+    /**
+     * Complete the task unless another attempt has; a failure only counts once no other attempt is running.
+     */
+    @Override
+    public void run() {
+      T result = null;
+      Throwable exception = null;
+      if (null != trace) {
+        // Attempts run on the policy's threads, attach the trace so that the factory can add a spawn span
+        trace.attach();
+      }
+      try {
+        result = call();
+      }
+      catch (Throwable e) {
+        exception = e;
+      }
+      finally {
+        if (null != trace) {
+          trace.detach();
+        }
+      }
+      synchronized (mutex) {
+        outstanding--;
+        if (outcome.isDone()) {
+          return;
+        }
+        if (null == exception) {
+          outcome.set(result);
+        }
+        else if (0 == outstanding) {
+          outcome.setException(exception);
+        }
+        else {
+          log.debug("Attempt failed while another is still running", exception);
+          return;
+        }
+        for (final Attempt loser : attempts) {
+          loser.cancel();
+        }
+      }
+    }
+
+    /**
+     * Cancel this attempt in the child, killing the child if it does not stop in time; called holding the mutex.
+     */
+    private void cancel() {
+      log.debug("Cancelling attempt on {}", wrapper);
+      wrapper.cancel();
+      hedging.scheduleKill(new Runnable() {
+        @Override
+        public void run() {
+          synchronized (mutex) {
+            if (!finished) {
+              log.warn("Cancelled attempt on {} did not stop, killing it", wrapper);
+              kill();
+            }
+          }
+        }
+      });
+    }
+
+    private void kill() {
+      try {
+        wrapper.kill();
+      }
+      catch (InterruptedException e) {
+        log.warn("Interrupted killing process", e);
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
   private final ProcessPool pool;
   private final Object mutex = new Object();
   private final JvmFactory<?> jvmFactory;
   private final Callable<T> callable;
-  private ProcessWrapper wrapper;
+  private final Class<?> taskClass;
+  private final long timeoutMillis;
+  private final long deadlineNanos;
+  private final Trace trace;
+  private final long submittedMicros;
+  private final HedgingPolicy hedging;
+  private final InlinePolicy inline;
+  private final List<Attempt> attempts = Lists.newArrayListWithCapacity(2);
+  private final SettableFuture<T> outcome = SettableFuture.create();
+  private final ResourceAccounting accounting;
+  private final AtomicReference<TaskUsage> usage = new AtomicReference<>();
+  private int outstanding;
   private boolean cancelled;
 
-  ProcessWrapperCallable(final ProcessPool pool, final JvmFactory<?> defaultJvmFactory, final Callable<T> callable) {
+  ProcessWrapperCallable(final ProcessPool pool, final JvmFactory<?> defaultJvmFactory, final Callable<T> callable,
+      final Tracer tracer, @Nullable final HedgingPolicy hedging, @Nullable final InlinePolicy inline,
+      @Nullable final ResourceAccounting accounting) {
+    // A submitted runnable, not the callable adapting it, carries the markers
+    final Object task = ProcessWrapper.unwrap(callable);
     this.pool = pool;
-    this.jvmFactory = pool.getJvmFactory(callable, defaultJvmFactory);
+    this.accounting = accounting;
+    this.jvmFactory = pool.getJvmFactory(task, defaultJvmFactory);
     this.callable = callable;
+    this.taskClass = task.getClass();
+    this.timeoutMillis = pool.getTimeoutMillis(task);
+    this.deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    this.trace = tracer.startTrace();
+    this.submittedMicros = TraceSpan.nowMicros();
+    this.hedging = task instanceof Idempotent ? hedging : null;
+    this.inline = task instanceof InlineSafe && 0 == timeoutMillis ? inline : null;
   }
 
   @Override
   public T call() throws Exception {
-    final T result;
+    if (null == trace) {
+      return execute();
+    }
+    trace.add("queue", submittedMicros, TraceSpan.nowMicros());
+    trace.attach();
+    try {
+      return execute();
+    }
+    finally {
+      trace.detach();
+      trace.finish();
+    }
+  }
+
+  private T execute() throws Exception {
+    if (null != inline && inline.shouldInline(taskClass)) {
+      return executeInline();
+    }
+    if (null == hedging) {
+      return new Attempt().call();
+    }
+    // Both attempts run on the policy's threads, so that the result of a hedge is not held up by a slow first attempt
+    final long startNanos = System.nanoTime();
+    hedging.execute(new Attempt());
+    final ScheduledFuture<?> hedge = hedging.scheduleHedge(jvmFactory, new Runnable() {
+      @Override
+      public void run() {
+        if (!outcome.isDone() && 0 < pool.getIdleCount(jvmFactory) && hedging.tryAcquireHedge()) {
+          log.debug("Hedging {}", callable);
+          new Attempt().run();
+        }
+      }
+    });
+    try {
+      final T result = outcome.get();
+      hedging.recordLatency(jvmFactory, System.nanoTime() - startNanos);
+      return result;
+    }
+    catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), Exception.class);
+      throw e;
+    }
+    finally {
+      if (null != hedge) {
+        hedge.cancel(false);
+      }
+    }
+  }
+
+  private T executeInline() throws ExecutionException {
     synchronized (mutex) {
       if (cancelled) {
         throw new CancellationException();
       }
-      wrapper = pool.getWrapper(jvmFactory);
     }
+    final long startMicros = TraceSpan.nowMicros();
+    final TaskUsage.Meter meter = new TaskUsage.Meter();
     try {
-      result = wrapper.run(callable);
+      return callable.call();
+    }
+    catch (Throwable e) {
+      // Surface the failure as a run in a child would
+      throw new ExecutionException(e);
     }
     finally {
-      pool.returnWrapper(jvmFactory, wrapper);
+      final TaskUsage inlineUsage = meter.stop();
+      // The task ran on this thread, not in a child of the JVM factory
+      record(inlineUsage, null);
+      inline.recordInline(taskClass, inlineUsage.getWallNanos());
+      if (null != trace) {
+        trace.add("inline", startMicros, TraceSpan.nowMicros());
+      }
+    }
+  }
+
+  private void record(@Nullable final TaskUsage attemptUsage, @Nullable final JvmFactory<?> childJvmFactory) {
+    if (null == attemptUsage) {
+      return;
+    }
+    TaskUsage total = usage.get();
+    while (!usage.compareAndSet(total, null == total ? attemptUsage : total.plus(attemptUsage))) {
+      total = usage.get();
     }
-    return result;
+    if (null != accounting) {
+      accounting.record(taskClass, childJvmFactory, attemptUsage);
+    }
+  }
+
+  /**
+   * @return the resources used by the attempts finished so far, or null if none have been measured
+   */
+  @Nullable
+  TaskUsage getUsage() {
+    return usage.get();
+  }
+
+  private long remainingMillis() throws ExecutionException {
+    if (0 == timeoutMillis) {
+      return 0;
+    }
+    final long remaining = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+    if (0 >= remaining) {
+      throw new ExecutionException(
+          new TimeoutException("Deadline of " + timeoutMillis + " ms passed before the task was started"));
+    }
+    return remaining;
   }
 
   boolean cancel(final boolean mayInterruptIfRunning) {
     synchronized (mutex) {
-      if (null == wrapper) {
+      if (attempts.isEmpty()) {
         cancelled = true;
       }
       else if (mayInterruptIfRunning) {
-        try {
-          wrapper.kill();
-        }
-        catch (InterruptedException e) {
-          log.warn("Interrupted killing process", e);
-          Thread.currentThread().interrupt();
+        for (final Attempt attempt : attempts) {
+          attempt.kill();
         }
       }
-      return null == wrapper || mayInterruptIfRunning;
+      return attempts.isEmpty() || mayInterruptIfRunning;
     }
   }
 }
@@ -1,119 +1,216 @@
 package ca.cutterslade.util.processpool;
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.PrintStream;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
 
-import org.apache.commons.pool.KeyedPoolableObjectFactory;
+import javax.annotation.Nullable;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import ca.cutterslade.util.jvmbuilder.JvmFactory;
 
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
-final class ProcessWrapperFactory implements KeyedPoolableObjectFactory<JvmFactory<?>, ProcessWrapper> {
+final class ProcessWrapperFactory extends AbstractProcessWrapperFactory {
   private static final Logger log = LoggerFactory.getLogger(ProcessWrapperFactory.class);
 
   private static final ThreadFactory THREAD_FACTORY =
       new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ProcessWrapperFactory-output-reader-%d").build();
 
-  private static final class ReaderRunnable implements Runnable {
-    private final InputStream stream;
-    private final PrintStream output;
+  /**
+   * When tuning, children report their statistics along with the result of one in this many tasks.
+   */
+  private static final int STATS_INTERVAL = 10;
+
+  /**
+   * Optional behaviour of the children; by default they use only their own class path and the key's options.
+   */
+  static final class Options {
+    private boolean remoteClasses;
+    private File classCache;
+    private CpuPlacementPolicy placement;
+    private JvmOptionCustomizer optionCustomizer;
+    private JvmFlagTuner tuner;
+
+    /**
+     * Children load classes missing from their own class path from the parent.
+     */
+    Options setRemoteClasses(final boolean remoteClasses) {
+      this.remoteClasses = remoteClasses;
+      return this;
+    }
 
-    private ReaderRunnable(final InputStream stream, final PrintStream output) {
-      this.stream = stream;
-      this.output = output;
+    /**
+     * Directory shared by children to cache classes loaded from the parent, implies remote classes.
+     */
+    Options setClassCache(@Nullable final File classCache) {
+      this.classCache = classCache;
+      return this;
     }
 
-    @Override
-    public void run() {
-      try (final BufferedReader reader = new BufferedReader(new InputStreamReader(stream))) {
-        for (String line = reader.readLine(); null != line; line = reader.readLine()) {
-          output.println(line);
-        }
-      }
-      catch (IOException e) {
-        log.warn("Exception reading from child's stream");
-      }
+    /**
+     * Each child is pinned to its own CPUs, which are released when the child is destroyed.
+     */
+    Options setPlacement(@Nullable final CpuPlacementPolicy placement) {
+      this.placement = placement;
+      return this;
+    }
+
+    /**
+     * Applies the options sizing each child to its CPUs and those chosen by the tuner; required by both.
+     */
+    Options setOptionCustomizer(@Nullable final JvmOptionCustomizer optionCustomizer) {
+      this.optionCustomizer = optionCustomizer;
+      return this;
+    }
+
+    /**
+     * Requires an option customizer; children launched with options the tuner has since changed are replaced.
+     */
+    Options setTuner(@Nullable final JvmFlagTuner tuner) {
+      this.tuner = tuner;
+      return this;
     }
   }
 
   private final ExecutorService readerExecutorService = Executors.newCachedThreadPool(THREAD_FACTORY);
 
+  private final ConcurrentMap<ProcessWrapper, CpuSlice> slices = new ConcurrentHashMap<>();
+
   private final int acceptTimeout;
 
   private final int readTimeout;
 
+  private final boolean remoteClasses;
+
+  private final File classCache;
+
+  private final CpuPlacementPolicy placement;
+
+  private final JvmOptionCustomizer optionCustomizer;
+
+  private final JvmFlagTuner tuner;
+
+  private final ConcurrentMap<ProcessWrapper, Integer> generations = new ConcurrentHashMap<>();
+
   ProcessWrapperFactory(final int acceptTimeout, final int readTimeout) {
+    this(acceptTimeout, readTimeout, new Options());
+  }
+
+  ProcessWrapperFactory(final int acceptTimeout, final int readTimeout, final Options options) {
+    // Without a customizer every generation would launch with the same options
+    Preconditions.checkArgument(null == options.tuner || null != options.optionCustomizer,
+        "A tuner requires an option customizer to apply its options");
+    Preconditions.checkArgument(null == options.placement || null != options.optionCustomizer,
+        "A placement policy requires an option customizer to size children to their CPUs");
     this.acceptTimeout = acceptTimeout;
     this.readTimeout = readTimeout;
+    this.remoteClasses = options.remoteClasses;
+    this.classCache = options.classCache;
+    this.placement = options.placement;
+    this.optionCustomizer = options.optionCustomizer;
+    this.tuner = options.tuner;
   }
 
   @Override
-  public ProcessWrapper makeObject(final JvmFactory<?> key) throws Exception {
-    Process process = null;
-    Socket socket = null;
+  ProcessWrapper createWrapper(final JvmFactory<?> key) throws Exception {
+    final CpuSlice slice = null == placement ? null : placement.acquire();
+    if (null != placement && null == slice) {
+      log.warn("No NUMA node has enough free CPUs, launching a child for {} without pinning it", key);
+    }
+    final List<String> options = Lists.newArrayList();
+    int generation = 0;
+    if (null != slice) {
+      options.addAll(slice.getJvmOptions());
+    }
+    if (null != tuner) {
+      // Read the generation before the options; should they change in between, the child is replaced early
+      generation = tuner.getGeneration(key);
+      options.addAll(tuner.getOptions(key));
+    }
+    final ProcessWrapper wrapper;
     boolean success = false;
-    try (final ServerSocket server = new ServerSocket(0, 0, InetAddress.getLocalHost())) {
-      server.setSoTimeout(acceptTimeout);
-      final int port = server.getLocalPort();
-      process = key.start(String.valueOf(port));
-      readerExecutorService.submit(new ReaderRunnable(process.getInputStream(), System.out));
-      readerExecutorService.submit(new ReaderRunnable(process.getErrorStream(), System.err));
-      socket = server.accept();
-      socket.setSoTimeout(readTimeout);
+    try {
+      wrapper = connect(InetAddress.getLocalHost(), acceptTimeout, readTimeout, new Launcher() {
+        @Override
+        public Process launch(final int port) throws IOException {
+          final JvmFactory<?> jvmFactory = null == optionCustomizer ? key : optionCustomizer.withOptions(key, options);
+          final Process process = jvmFactory.start(taskArguments(port, slice));
+          readerExecutorService.submit(new OutputForwarder(process.getInputStream(), System.out));
+          readerExecutorService.submit(new OutputForwarder(process.getErrorStream(), System.err));
+          return process;
+        }
+      });
       success = true;
     }
     finally {
-      if (!success) {
-        try {
-          if (null != socket) {
-            socket.close();
-          }
-        }
-        finally {
-          if (null != process) {
-            process.destroy();
-          }
-        }
+      if (!success && null != slice) {
+        placement.release(slice);
       }
     }
-    return new ProcessWrapper(process, socket);
+    if (null != slice) {
+      slices.put(wrapper, slice);
+    }
+    if (null != tuner) {
+      generations.put(wrapper, generation);
+      wrapper.setStatsInterval(STATS_INTERVAL);
+    }
+    return wrapper;
   }
 
   @Override
-  public void destroyObject(final JvmFactory<?> key, final ProcessWrapper obj) throws Exception {
-    obj.close();
+  public boolean validateObject(final JvmFactory<?> key, final ProcessWrapper obj) {
+    if (null != tuner) {
+      final Integer generation = generations.get(obj);
+      if (null != generation && tuner.getGeneration(key) != generation) {
+        log.debug("Replacing {}, launched with options since changed by the tuner", obj);
+        return false;
+      }
+    }
+    return super.validateObject(key, obj);
   }
 
   @Override
-  public boolean validateObject(final JvmFactory<?> key, final ProcessWrapper obj) {
-    boolean valid = false;
-    try {
-      obj.ping();
-      valid = true;
-    }
-    catch (Exception e) {
-      log.warn("Exception thrown validating wrapper {}", obj, e);
+  public void passivateObject(final JvmFactory<?> key, final ProcessWrapper obj) throws Exception {
+    if (null != tuner) {
+      final ChildStats stats = obj.takeStats();
+      final Integer generation = generations.get(obj);
+      if (null != stats && null != generation) {
+        tuner.record(key, generation, stats);
+      }
     }
-    return valid;
   }
 
   @Override
-  public void activateObject(final JvmFactory<?> key, final ProcessWrapper obj) throws Exception {
+  void destroyed(final JvmFactory<?> key, final ProcessWrapper wrapper) {
+    generations.remove(wrapper);
+    final CpuSlice slice = slices.remove(wrapper);
+    if (null != slice) {
+      placement.release(slice);
+    }
   }
 
-  @Override
-  public void passivateObject(final JvmFactory<?> key, final ProcessWrapper obj) throws Exception {
+  private String[] taskArguments(final int port, @Nullable final CpuSlice slice) {
+    final List<String> arguments = Lists.newArrayList(String.valueOf(port));
+    if (null != classCache) {
+      arguments.add(ProcessTask.CLASS_CACHE_OPTION + classCache.getAbsolutePath());
+    }
+    else if (remoteClasses) {
+      arguments.add(ProcessTask.REMOTE_CLASSES_OPTION);
+    }
+    if (null != slice) {
+      arguments.add(ProcessTask.CPUS_OPTION + slice.getCpuList());
+    }
+    return arguments.toArray(new String[arguments.size()]);
   }
 }
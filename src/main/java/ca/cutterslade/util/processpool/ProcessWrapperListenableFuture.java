@@ -6,10 +6,11 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import com.google.common.util.concurrent.ListenableFuture;
 
-final class ProcessWrapperListenableFuture<T> implements ListenableFuture<T> {
+final class ProcessWrapperListenableFuture<T> implements AccountedFuture<T> {
   private final ProcessWrapperCallable<T> callable;
   private final ListenableFuture<T> future;
 
@@ -26,7 +27,10 @@ final class ProcessWrapperListenableFuture<T> implements ListenableFuture<T> {
 
   @Override
   public boolean cancel(final boolean mayInterruptIfRunning) {
-    return future.cancel(false) || callable.cancel(mayInterruptIfRunning);
+    final boolean cancelled = future.cancel(mayInterruptIfRunning);
+    // The task may be running in a child, which only the callable can stop
+    callable.cancel(mayInterruptIfRunning);
+    return cancelled;
   }
 
   @Override
@@ -49,4 +53,10 @@ final class ProcessWrapperListenableFuture<T> implements ListenableFuture<T> {
       throws InterruptedException, ExecutionException, TimeoutException {
     return future.get(timeout, unit);
   }
+
+  @Nullable
+  @Override
+  public TaskUsage getUsage() {
+    return callable.getUsage();
+  }
 }
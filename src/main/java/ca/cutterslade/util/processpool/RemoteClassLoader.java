@@ -0,0 +1,152 @@
+package ca.cutterslade.util.processpool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Loads classes missing from the child's class path from the parent, optionally caching them by content digest.
+ */
+final class RemoteClassLoader extends ClassLoader {
+  private static final Logger log = LoggerFactory.getLogger(RemoteClassLoader.class);
+
+  /**
+   * Sent by the child in place of a command result when it needs a class.
+   */
+  static final class ClassRequest implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private final String name;
+    private final boolean digestOnly;
+
+    ClassRequest(final String name, final boolean digestOnly) {
+      this.name = name;
+      this.digestOnly = digestOnly;
+    }
+
+    ClassResponse respond(final ClassLoader classLoader) {
+      final String resource = name.replace('.', '/') + ".class";
+      try (final InputStream stream = classLoader.getResourceAsStream(resource)) {
+        if (null == stream) {
+          log.debug("Class {} requested by child is not available", name);
+          return new ClassResponse(null, null);
+        }
+        final byte[] bytes = ByteStreams.toByteArray(stream);
+        return new ClassResponse(digest(bytes), digestOnly ? null : bytes);
+      }
+      catch (IOException e) {
+        log.warn("Exception reading class {} requested by child", name, e);
+        return new ClassResponse(null, null);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "ClassRequest[" + name + ']';
+    }
+  }
+
+  static final class ClassResponse implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private final String digest;
+    private final byte[] bytes;
+
+    ClassResponse(@Nullable final String digest, @Nullable final byte[] bytes) {
+      this.digest = digest;
+      this.bytes = bytes;
+    }
+  }
+
+  private final InputStream input;
+  private final OutputStream output;
+  private final Object channelLock;
+  private final File cacheDirectory;
+  private final ProcessContext context;
+
+  /**
+   * @param context executes commands, such as cancellations, sent while a class is being requested
+   */
+  RemoteClassLoader(final ClassLoader parent, final InputStream input, final OutputStream output,
+      final Object channelLock, @Nullable final File cacheDirectory, final ProcessContext context) {
+    super(parent);
+    this.input = input;
+    this.output = output;
+    this.channelLock = channelLock;
+    this.cacheDirectory = cacheDirectory;
+    this.context = context;
+  }
+
+  @Override
+  protected Class<?> findClass(final String name) throws ClassNotFoundException {
+    final byte[] bytes;
+    try {
+      bytes = null == cacheDirectory ? request(name, false).bytes : fetchCached(name);
+    }
+    catch (IOException e) {
+      throw new ClassNotFoundException(name, e);
+    }
+    log.debug("Defining class {} from {} bytes recieved from parent", name, bytes.length);
+    return defineClass(name, bytes, 0, bytes.length);
+  }
+
+  private byte[] fetchCached(final String name) throws IOException, ClassNotFoundException {
+    final String digest = request(name, true).digest;
+    final Path cached = new File(cacheDirectory, digest + ".class").toPath();
+    if (Files.isRegularFile(cached)) {
+      final byte[] bytes = Files.readAllBytes(cached);
+      if (digest.equals(digest(bytes))) {
+        return bytes;
+      }
+      log.warn("Cached class file {} does not match its digest, fetching {} again", cached, name);
+    }
+    final byte[] bytes = request(name, false).bytes;
+    store(cached, bytes);
+    return bytes;
+  }
+
+  private ClassResponse request(final String name, final boolean digestOnly)
+      throws IOException, ClassNotFoundException {
+    Object response;
+    synchronized (channelLock) {
+      StreamUtils.writeObject(output, new ClassRequest(name, digestOnly));
+      response = StreamUtils.readObject(input);
+      while (response instanceof ProcessCommand) {
+        ((ProcessCommand) response).execute(context);
+        response = StreamUtils.readObject(input);
+      }
+    }
+    final ClassResponse classResponse = (ClassResponse) response;
+    if (null == classResponse.digest) {
+      throw new ClassNotFoundException(name);
+    }
+    return classResponse;
+  }
+
+  private static void store(final Path cached, final byte[] bytes) {
+    try {
+      // Children share the cache directory, so write to a temporary file then move it into place in one step
+      final Path temp = Files.createTempFile(cached.getParent(), "class", ".tmp");
+      Files.write(temp, bytes);
+      Files.move(temp, cached, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+    catch (IOException e) {
+      log.warn("Could not cache class file {}", cached, e);
+    }
+  }
+
+  private static String digest(final byte[] bytes) {
+    return Hashing.sha1().hashBytes(bytes).toString();
+  }
+}
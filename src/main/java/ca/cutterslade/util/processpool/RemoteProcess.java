@@ -0,0 +1,72 @@
+package ca.cutterslade.util.processpool;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A child launched by a {@link ProcessAgent}, which keeps its exit value once the agent has reported it.
+ */
+final class RemoteProcess extends DetachedProcess {
+  private static final Logger log = LoggerFactory.getLogger(RemoteProcess.class);
+
+  private final InetSocketAddress agent;
+  private final byte[] secret;
+  private final long id;
+  private volatile Integer exitValue;
+
+  RemoteProcess(final InetSocketAddress agent, final byte[] secret, final long id) {
+    this.agent = agent;
+    this.secret = secret;
+    this.id = id;
+  }
+
+  @Override
+  public int waitFor() {
+    if (null == exitValue) {
+      try {
+        exitValue = (Integer) ProcessAgent.call(agent, secret, new ProcessAgent.WaitForCommand(id));
+      }
+      catch (IOException e) {
+        throw new ProcessPoolException(e);
+      }
+    }
+    return exitValue;
+  }
+
+  @Override
+  public int exitValue() {
+    if (null == exitValue) {
+      try {
+        exitValue = (Integer) ProcessAgent.call(agent, secret, new ProcessAgent.ExitValueCommand(id));
+      }
+      catch (IOException e) {
+        if (e.getCause() instanceof IllegalThreadStateException) {
+          throw (IllegalThreadStateException) e.getCause();
+        }
+        throw new ProcessPoolException(e);
+      }
+    }
+    return exitValue;
+  }
+
+  @Override
+  public void destroy() {
+    if (null != exitValue) {
+      return;
+    }
+    try {
+      ProcessAgent.call(agent, secret, new ProcessAgent.DestroyCommand(id));
+    }
+    catch (IOException e) {
+      log.warn("Exception destroying child {} on agent {}", id, agent, e);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "RemoteProcess[" + agent + '#' + id + ']';
+  }
+}
@@ -0,0 +1,44 @@
+package ca.cutterslade.util.processpool;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+
+import ca.cutterslade.util.jvmbuilder.JvmFactory;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Totals of the resources used by tasks, by task class and by the JVM factory of the children which ran them.
+ */
+final class ResourceAccounting {
+  private final ConcurrentMap<Class<?>, TaskUsage> byTaskClass = new ConcurrentHashMap<>();
+  private final ConcurrentMap<JvmFactory<?>, TaskUsage> byJvmFactory = new ConcurrentHashMap<>();
+
+  /**
+   * @param jvmFactory the JVM factory of the child which ran the task, or null if it ran in this process
+   */
+  void record(final Class<?> taskClass, @Nullable final JvmFactory<?> jvmFactory, final TaskUsage usage) {
+    add(byTaskClass, taskClass, usage);
+    if (null != jvmFactory) {
+      add(byJvmFactory, jvmFactory, usage);
+    }
+  }
+
+  private static <K> void add(final ConcurrentMap<K, TaskUsage> totals, final K key, final TaskUsage usage) {
+    TaskUsage total = totals.putIfAbsent(key, usage);
+    while (null != total && !totals.replace(key, total, total.plus(usage))) {
+      total = totals.get(key);
+    }
+  }
+
+  Map<Class<?>, TaskUsage> getByTaskClass() {
+    return ImmutableMap.copyOf(byTaskClass);
+  }
+
+  Map<JvmFactory<?>, TaskUsage> getByJvmFactory() {
+    return ImmutableMap.copyOf(byJvmFactory);
+  }
+}
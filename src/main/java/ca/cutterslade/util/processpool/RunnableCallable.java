@@ -0,0 +1,29 @@
+package ca.cutterslade.util.processpool;
+
+import java.io.Serializable;
+import java.util.concurrent.Callable;
+
+/**
+ * Runs a submitted runnable as a callable, keeping the runnable's class for the policies and accounting.
+ */
+class RunnableCallable<T> implements Callable<T>, Serializable, WrapsTask {
+  private static final long serialVersionUID = 1L;
+  private final Runnable runnable;
+  private final T result;
+
+  RunnableCallable(final Runnable runnable, final T result) {
+    this.runnable = runnable;
+    this.result = result;
+  }
+
+  @Override
+  public T call() {
+    runnable.run();
+    return result;
+  }
+
+  @Override
+  public Runnable getTask() {
+    return runnable;
+  }
+}
@@ -0,0 +1,5 @@
+package ca.cutterslade.util.processpool;
+
+public interface SpecifiesTimeout {
+  long getTimeoutMillis();
+}
@@ -5,42 +5,119 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 
+import com.google.common.io.ByteStreams;
+
 enum StreamUtils {
   ;
 
+  private static final class ClassLoaderObjectInputStream extends ObjectInputStream {
+    private final ClassLoader classLoader;
+
+    ClassLoaderObjectInputStream(final InputStream in, final ClassLoader classLoader) throws IOException {
+      super(in);
+      this.classLoader = classLoader;
+    }
+
+    @Override
+    protected Class<?> resolveClass(final ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+      try {
+        return Class.forName(desc.getName(), false, classLoader);
+      }
+      catch (ClassNotFoundException e) {
+        // Primitive types can not be loaded by name
+        return super.resolveClass(desc);
+      }
+    }
+  }
+
   static void writeObject(final OutputStream output, final Object object) throws IOException {
+    writeObject(output, object, FrameCompressor.NONE);
+  }
+
+  /**
+   * Write an object as a frame: a four byte length, a one byte codec and the possibly compressed object.
+   */
+  static void writeObject(final OutputStream output, final Object object, final FrameCompressor compressor)
+      throws IOException {
+    writeFrame(output, serialize(object), compressor);
+  }
+
+  static byte[] serialize(final Object object) throws IOException {
     final ByteArrayOutputStream baos = new ByteArrayOutputStream();
     try (final ObjectOutputStream out = new ObjectOutputStream(baos)) {
       out.writeObject(object);
     }
-    final byte[] bytes = baos.toByteArray();
-    final ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
-    lengthBuffer.putInt(bytes.length);
-    lengthBuffer.flip();
-    final byte[] lengthArray = new byte[4];
-    lengthBuffer.get(lengthArray);
-    output.write(lengthArray);
-    output.write(bytes);
+    return baos.toByteArray();
+  }
+
+  static void writeFrame(final OutputStream output, final byte[] serialized, final FrameCompressor compressor)
+      throws IOException {
+    final byte[] compressed = compressor.compress(serialized);
+    final byte[] bytes = null == compressed ? serialized : compressed;
+    final ByteBuffer frameBuffer = ByteBuffer.allocate(5 + bytes.length);
+    frameBuffer.putInt(bytes.length);
+    frameBuffer.put(null == compressed ? FrameCompressor.RAW : FrameCompressor.DEFLATE);
+    frameBuffer.put(bytes);
+    // A single write, so that the header and body do not wait on each other's acknowledgement
+    output.write(frameBuffer.array());
   }
 
   static Object readObject(final InputStream input) throws IOException, ClassNotFoundException {
-    final byte[] lengthBytes = new byte[4];
-    final int lengthRead = input.read(lengthBytes);
-    if (4 != lengthRead) {
-      throw new IOException("Expected 4 bytes but only read " + lengthRead);
-    }
-    final ByteBuffer lengthBuffer = ByteBuffer.wrap(lengthBytes);
-    final byte[] resultBytes = new byte[lengthBuffer.getInt()];
-    final int resultRead = input.read(resultBytes);
-    if (resultBytes.length != resultRead) {
-      throw new IOException("Expected " + resultBytes.length + " bytes but only read " + resultRead);
+    return deserialize(readFrame(input));
+  }
+
+  static Object deserialize(final byte[] frame) throws IOException, ClassNotFoundException {
+    try (final ObjectInputStream objectInputStream = new ObjectInputStream(new ByteArrayInputStream(frame))) {
+      return objectInputStream.readObject();
     }
-    try (final ObjectInputStream objectInputStream = new ObjectInputStream(new ByteArrayInputStream(resultBytes))) {
+  }
+
+  static Object deserialize(final byte[] frame, final ClassLoader classLoader)
+      throws IOException, ClassNotFoundException {
+    try (final ObjectInputStream objectInputStream =
+        new ClassLoaderObjectInputStream(new ByteArrayInputStream(frame), classLoader)) {
       return objectInputStream.readObject();
     }
   }
+
+  /**
+   * Read the next frame, decompressed if necessary, without deserializing it.
+   */
+  static byte[] readFrame(final InputStream input) throws IOException {
+    return readFrame(input, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Read the next frame, failing if it is longer than {@code maxLength} bytes either as sent or decompressed.
+   */
+  static byte[] readFrame(final InputStream input, final int maxLength) throws IOException {
+    final byte[] headerBytes = new byte[5];
+    ByteStreams.readFully(input, headerBytes);
+    final ByteBuffer headerBuffer = ByteBuffer.wrap(headerBytes);
+    final int length = headerBuffer.getInt();
+    if (0 > length || maxLength < length) {
+      throw new IOException("Frame of " + length + " bytes exceeds limit of " + maxLength);
+    }
+    final byte[] resultBytes = new byte[length];
+    final byte codec = headerBuffer.get();
+    // A large frame may arrive in several reads
+    ByteStreams.readFully(input, resultBytes);
+    switch (codec) {
+      case FrameCompressor.RAW:
+        return resultBytes;
+      case FrameCompressor.DEFLATE:
+        final int inflatedLength = 4 > length ? -1 : ByteBuffer.wrap(resultBytes).getInt();
+        if (0 > inflatedLength || maxLength < inflatedLength) {
+          throw new IOException("Compressed frame exceeds limit of " + maxLength);
+        }
+        return FrameCompressor.decompress(resultBytes);
+      default:
+        throw new IOException("Unknown frame codec " + codec);
+    }
+  }
 }
@@ -0,0 +1,76 @@
+package ca.cutterslade.util.processpool;
+
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Resources used by tasks in the children; CPU time and allocation are zero where the child can not measure them.
+ */
+public final class TaskUsage implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private final long tasks;
+  private final long cpuNanos;
+  private final long allocatedBytes;
+  private final long wallNanos;
+
+  TaskUsage(final long tasks, final long cpuNanos, final long allocatedBytes, final long wallNanos) {
+    this.tasks = tasks;
+    this.cpuNanos = cpuNanos;
+    this.allocatedBytes = allocatedBytes;
+    this.wallNanos = wallNanos;
+  }
+
+  /**
+   * Measures the current thread; used by the child around each task.
+   */
+  static final class Meter {
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private final long startCpuNanos = cpuNanos();
+    private final long startAllocatedBytes = allocatedBytes();
+    private final long startWallNanos = System.nanoTime();
+
+    TaskUsage stop() {
+      return new TaskUsage(1, cpuNanos() - startCpuNanos, allocatedBytes() - startAllocatedBytes,
+          System.nanoTime() - startWallNanos);
+    }
+
+    private static long cpuNanos() {
+      return THREADS.isCurrentThreadCpuTimeSupported() ? Math.max(0, THREADS.getCurrentThreadCpuTime()) : 0;
+    }
+
+    private static long allocatedBytes() {
+      return THREADS instanceof com.sun.management.ThreadMXBean ?
+          Math.max(0, ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(
+              Thread.currentThread().getId())) : 0;
+    }
+  }
+
+  public long getTasks() {
+    return tasks;
+  }
+
+  public long getCpuNanos() {
+    return cpuNanos;
+  }
+
+  public long getAllocatedBytes() {
+    return allocatedBytes;
+  }
+
+  public long getWallNanos() {
+    return wallNanos;
+  }
+
+  TaskUsage plus(final TaskUsage other) {
+    return new TaskUsage(tasks + other.tasks, cpuNanos + other.cpuNanos, allocatedBytes + other.allocatedBytes,
+        wallNanos + other.wallNanos);
+  }
+
+  @Override
+  public String toString() {
+    return "TaskUsage[" + tasks + " tasks, " + cpuNanos + " ns CPU, " + allocatedBytes + " bytes allocated, " +
+        wallNanos + " ns wall]";
+  }
+}
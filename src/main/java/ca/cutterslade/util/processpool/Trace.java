@@ -0,0 +1,61 @@
+package ca.cutterslade.util.processpool;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.Lists;
+
+/**
+ * The spans of one sampled task; attached to the thread working on it so that code unaware of the task can add spans.
+ */
+final class Trace {
+  private static final ThreadLocal<Trace> CURRENT = new ThreadLocal<>();
+
+  private final Tracer tracer;
+  private final long id;
+  private final List<TraceSpan> spans = Lists.newArrayList();
+  private boolean finished;
+
+  Trace(final Tracer tracer, final long id) {
+    this.tracer = tracer;
+    this.id = id;
+  }
+
+  @Nullable
+  static Trace current() {
+    return CURRENT.get();
+  }
+
+  long getId() {
+    return id;
+  }
+
+  void add(final String name, final long startMicros, final long endMicros) {
+    addAll(Collections.singletonList(TraceSpan.of(name, id, startMicros, endMicros)));
+  }
+
+  synchronized void addAll(final Collection<TraceSpan> childSpans) {
+    if (finished) {
+      tracer.record(childSpans);
+    }
+    else {
+      spans.addAll(childSpans);
+    }
+  }
+
+  void attach() {
+    CURRENT.set(this);
+  }
+
+  void detach() {
+    CURRENT.remove();
+  }
+
+  synchronized void finish() {
+    finished = true;
+    tracer.record(spans);
+  }
+}
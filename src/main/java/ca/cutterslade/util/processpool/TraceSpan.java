@@ -0,0 +1,106 @@
+package ca.cutterslade.util.processpool;
+
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A timed step of a traced task; times are microseconds since the epoch, comparable between processes on a host.
+ */
+final class TraceSpan implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private static final long ANCHOR_MICROS = anchorMicros();
+  private static final String PROCESS_NAME = ManagementFactory.getRuntimeMXBean().getName();
+  private static final long PID = pid(PROCESS_NAME);
+
+  private final String name;
+  private final long traceId;
+  private final long startMicros;
+  private final long durationMicros;
+  private final long pid;
+  private final String processName;
+  private final long tid;
+  private final String threadName;
+
+  private TraceSpan(final String name, final long traceId, final long startMicros, final long durationMicros) {
+    this.name = name;
+    this.traceId = traceId;
+    this.startMicros = startMicros;
+    this.durationMicros = durationMicros;
+    this.pid = PID;
+    this.processName = PROCESS_NAME;
+    this.tid = Thread.currentThread().getId();
+    this.threadName = Thread.currentThread().getName();
+  }
+
+  /**
+   * A span recorded by the current thread of this process.
+   */
+  static TraceSpan of(final String name, final long traceId, final long startMicros, final long endMicros) {
+    return new TraceSpan(name, traceId, startMicros, Math.max(0, endMicros - startMicros));
+  }
+
+  /**
+   * Align to a tick of the wall clock, so that anchors taken by different processes agree.
+   */
+  private static long anchorMicros() {
+    final long start = System.currentTimeMillis();
+    long millis = start;
+    while (start == millis) {
+      millis = System.currentTimeMillis();
+    }
+    return TimeUnit.MILLISECONDS.toMicros(millis) - TimeUnit.NANOSECONDS.toMicros(System.nanoTime());
+  }
+
+  static long nowMicros() {
+    return ANCHOR_MICROS + TimeUnit.NANOSECONDS.toMicros(System.nanoTime());
+  }
+
+  private static long pid(final String processName) {
+    final int at = processName.indexOf('@');
+    try {
+      return Long.parseLong(0 < at ? processName.substring(0, at) : processName);
+    }
+    catch (NumberFormatException e) {
+      return processName.hashCode();
+    }
+  }
+
+  String getName() {
+    return name;
+  }
+
+  long getTraceId() {
+    return traceId;
+  }
+
+  long getStartMicros() {
+    return startMicros;
+  }
+
+  long getDurationMicros() {
+    return durationMicros;
+  }
+
+  long getPid() {
+    return pid;
+  }
+
+  String getProcessName() {
+    return processName;
+  }
+
+  long getTid() {
+    return tid;
+  }
+
+  String getThreadName() {
+    return threadName;
+  }
+
+  @Override
+  public String toString() {
+    return "TraceSpan[" + name + " of " + Long.toHexString(traceId) + ": " + durationMicros + "us]";
+  }
+}
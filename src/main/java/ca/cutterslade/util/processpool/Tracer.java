@@ -0,0 +1,132 @@
+package ca.cutterslade.util.processpool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+/**
+ * Samples tasks for tracing and keeps the most recent spans, which can be written in the Chrome trace event format.
+ */
+final class Tracer {
+  private static final Logger log = LoggerFactory.getLogger(Tracer.class);
+
+  static final Tracer DISABLED = new Tracer(0, 0);
+
+  private final Random random = new Random();
+  private final Deque<TraceSpan> spans = new ArrayDeque<>();
+  private final double sampleRate;
+  private final int maxSpans;
+
+  /**
+   * @param maxSpans number of spans to keep; the oldest spans are dropped first
+   */
+  Tracer(final double sampleRate, final int maxSpans) {
+    Preconditions.checkArgument(0 <= sampleRate && 1 >= sampleRate);
+    this.sampleRate = sampleRate;
+    this.maxSpans = maxSpans;
+  }
+
+  /**
+   * @return a new trace, or null if this task was not sampled
+   */
+  @Nullable
+  Trace startTrace() {
+    if (0 == sampleRate) {
+      return null;
+    }
+    synchronized (random) {
+      if (random.nextDouble() >= sampleRate) {
+        return null;
+      }
+      long id = random.nextLong();
+      while (0 == id) {
+        id = random.nextLong();
+      }
+      return new Trace(this, id);
+    }
+  }
+
+  synchronized void record(final Collection<TraceSpan> traceSpans) {
+    spans.addAll(traceSpans);
+    while (maxSpans < spans.size()) {
+      spans.removeFirst();
+    }
+  }
+
+  synchronized List<TraceSpan> getSpans() {
+    return ImmutableList.copyOf(spans);
+  }
+
+  void writeChromeTrace(final File file) throws IOException {
+    final List<TraceSpan> snapshot = getSpans();
+    log.debug("Writing {} spans to {}", snapshot.size(), file);
+    try (final Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+      writeChromeTrace(writer, snapshot);
+    }
+  }
+
+  static void writeChromeTrace(final Writer writer, final List<TraceSpan> spans) throws IOException {
+    final Map<Long, String> processNames = Maps.newLinkedHashMap();
+    writer.write("{\"traceEvents\":[");
+    boolean first = true;
+    for (final TraceSpan span : spans) {
+      processNames.put(span.getPid(), span.getProcessName());
+      if (!first) {
+        writer.write(',');
+      }
+      first = false;
+      writer.write("\n{\"name\":" + quote(span.getName()) + ",\"cat\":\"process-pool\",\"ph\":\"X\",\"ts\":" +
+          span.getStartMicros() + ",\"dur\":" + span.getDurationMicros() + ",\"pid\":" + span.getPid() + ",\"tid\":" +
+          span.getTid() + ",\"args\":{\"traceId\":\"" + Long.toHexString(span.getTraceId()) + "\",\"thread\":" +
+          quote(span.getThreadName()) + "}}");
+    }
+    for (final Map.Entry<Long, String> process : processNames.entrySet()) {
+      if (!first) {
+        writer.write(',');
+      }
+      first = false;
+      writer.write("\n{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":" + process.getKey() + ",\"args\":{\"name\":" +
+          quote(process.getValue()) + "}}");
+    }
+    writer.write("\n],\"displayTimeUnit\":\"ms\"}\n");
+  }
+
+  private static String quote(final String value) {
+    final StringBuilder builder = new StringBuilder(value.length() + 2).append('"');
+    for (final char c : value.toCharArray()) {
+      switch (c) {
+        case '"':
+          builder.append("\\\"");
+          break;
+        case '\\':
+          builder.append("\\\\");
+          break;
+        default:
+          if (' ' > c) {
+            builder.append(String.format("\\u%04x", (int) c));
+          }
+          else {
+            builder.append(c);
+          }
+      }
+    }
+    return builder.append('"').toString();
+  }
+}
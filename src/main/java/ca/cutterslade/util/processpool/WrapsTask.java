@@ -0,0 +1,8 @@
+package ca.cutterslade.util.processpool;
+
+/**
+ * A callable adapting a user's task, which carries the markers and classes of the task.
+ */
+interface WrapsTask {
+  Object getTask();
+}
@@ -0,0 +1,49 @@
+package ca.cutterslade.util.processpool;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+
+public class CpuPlacementPolicyTest {
+  private static final List<Integer> NODE_0 = Arrays.asList(0, 1, 2, 3);
+  private static final List<Integer> NODE_1 = Arrays.asList(4, 5, 6, 7);
+
+  @Test
+  public void testParseCpuList() {
+    Assert.assertEquals(Arrays.asList(0, 1, 2, 3, 8, 10, 11), CpuPlacementPolicy.parseCpuList("0-3,8,10-11\n"));
+  }
+
+  @Test
+  public void testChildrenSpreadAcrossNodes() {
+    final CpuPlacementPolicy policy = new CpuPlacementPolicy(ImmutableMap.of(0, NODE_0, 1, NODE_1), 2);
+    final CpuSlice first = policy.acquire();
+    final CpuSlice second = policy.acquire();
+    Assert.assertEquals(Arrays.asList(0, 1), first.getCpus());
+    Assert.assertEquals(Arrays.asList(4, 5), second.getCpus());
+    Assert.assertEquals(Arrays.asList(2, 3), policy.acquire().getCpus());
+    Assert.assertEquals(Arrays.asList(6, 7), policy.acquire().getCpus());
+    Assert.assertNull(policy.acquire());
+    policy.release(second);
+    Assert.assertEquals(Arrays.asList(4, 5), policy.acquire().getCpus());
+  }
+
+  @Test
+  public void testJvmOptionsMatchSlice() {
+    final CpuPlacementPolicy policy = new CpuPlacementPolicy(ImmutableMap.of(0, NODE_0, 1, NODE_1), 4);
+    final CpuSlice slice = policy.acquire();
+    Assert.assertEquals("0,1,2,3", slice.getCpuList());
+    Assert.assertTrue(slice.getJvmOptions().contains("-XX:ParallelGCThreads=4"));
+    // Each slice lies on one node, even when the host has several
+    Assert.assertFalse(slice.getJvmOptions().contains("-XX:+UseNUMA"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testPlacementRequiresCustomizer() {
+    new ProcessWrapperFactory(5000, 5000, new ProcessWrapperFactory.Options().setPlacement(
+        new CpuPlacementPolicy(ImmutableMap.of(0, NODE_0), 2)));
+  }
+}
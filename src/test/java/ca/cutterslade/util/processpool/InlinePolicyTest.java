@@ -0,0 +1,41 @@
+package ca.cutterslade.util.processpool;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class InlinePolicyTest {
+  private static final long OVERHEAD_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private static TaskUsage usage(final long wallNanos) {
+    return new TaskUsage(1, wallNanos, 0, wallNanos);
+  }
+
+  @Test
+  public void testAdaptiveInlinesCheapTasksOnceCostIsKnown() {
+    final InlinePolicy policy = new InlinePolicy(InlinePolicy.Mode.ADAPTIVE);
+    for (int i = 0; i < 4; i++) {
+      Assert.assertFalse(policy.shouldInline(String.class));
+      policy.recordRemote(String.class, OVERHEAD_NANOS + 1000, usage(1000));
+    }
+    Assert.assertFalse(policy.shouldInline(String.class));
+    policy.recordRemote(String.class, OVERHEAD_NANOS + 1000, usage(1000));
+    Assert.assertTrue(policy.shouldInline(String.class));
+    // Tasks which turn out to be expensive go back to the children
+    for (int i = 0; i < 20 && policy.shouldInline(String.class); i++) {
+      policy.recordInline(String.class, 10 * OVERHEAD_NANOS);
+    }
+    Assert.assertFalse(policy.shouldInline(String.class));
+  }
+
+  @Test
+  public void testAdaptiveKeepsExpensiveTasksInChildren() {
+    final InlinePolicy policy = new InlinePolicy(InlinePolicy.Mode.ADAPTIVE);
+    for (int i = 0; i < 10; i++) {
+      policy.recordRemote(Integer.class, 11 * OVERHEAD_NANOS, usage(10 * OVERHEAD_NANOS));
+    }
+    Assert.assertFalse(policy.shouldInline(Integer.class));
+    Assert.assertTrue(new InlinePolicy(InlinePolicy.Mode.ALWAYS).shouldInline(Integer.class));
+  }
+}
@@ -0,0 +1,96 @@
+package ca.cutterslade.util.processpool;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ca.cutterslade.util.jvmbuilder.JvmFactory;
+import ca.cutterslade.util.jvmbuilder.sun.SunJvmFactoryBuilder;
+
+import com.google.common.collect.ImmutableList;
+
+public class JvmFlagTunerTest {
+  private static final long MEGABYTE = 1024 * 1024;
+
+  private enum NullCallable implements Callable<Void>, Serializable {
+    INSTANCE;
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public Void call() {
+      return null;
+    }
+  }
+
+  private final JvmFactory<?> key = new SunJvmFactoryBuilder().build();
+
+  private final JvmFlagTuner tuner = new JvmFlagTuner(64, 1024, ImmutableList.<List<String>>of(
+      ImmutableList.of("-XX:+UseParallelGC")), ImmutableList.<List<String>>of());
+
+  private void record(final int generation, final double occupancy, final long executeMicros) {
+    for (int i = 0; i < 50; i++) {
+      tuner.record(key, generation, new ChildStats((long) (occupancy * 256 * MEGABYTE), 256 * MEGABYTE, 0, 1000,
+          executeMicros));
+    }
+  }
+
+  @Test
+  public void testFullHeapGrowsHeap() {
+    Assert.assertEquals(ImmutableList.of(), tuner.getOptions(key));
+    record(0, 0.9, 100);
+    Assert.assertEquals(1, tuner.getGeneration(key));
+    Assert.assertEquals(ImmutableList.of("-Xms384m", "-Xmx384m"), tuner.getOptions(key));
+    // Statistics from children of an older generation are ignored
+    record(0, 0.5, 1000);
+    Assert.assertEquals(1, tuner.getGeneration(key));
+  }
+
+  @Test
+  public void testSlowerGenerationIsReverted() {
+    record(0, 0.1, 100);
+    Assert.assertEquals(ImmutableList.of("-Xms192m", "-Xmx192m"), tuner.getOptions(key));
+    record(1, 0.1, 200);
+    Assert.assertEquals(2, tuner.getGeneration(key));
+    Assert.assertEquals(ImmutableList.of(), tuner.getOptions(key));
+    Assert.assertFalse(tuner.revert(key));
+  }
+
+  @Test
+  public void testSlowerWindowOfSameGenerationIsKept() {
+    record(0, 0.9, 100);
+    record(1, 0.5, 100);
+    Assert.assertEquals(1, tuner.getGeneration(key));
+    record(1, 0.5, 200);
+    Assert.assertEquals(1, tuner.getGeneration(key));
+    Assert.assertEquals(ImmutableList.of("-Xms384m", "-Xmx384m"), tuner.getOptions(key));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTunerRequiresCustomizer() {
+    new ProcessWrapperFactory(5000, 5000, new ProcessWrapperFactory.Options().setTuner(tuner));
+  }
+
+  @Test
+  public void testChildReportsStats() throws Exception {
+    final LoopbackProcessWrapperFactory factory = new LoopbackProcessWrapperFactory(5000);
+    final ProcessWrapper wrapper = factory.createWrapper(key);
+    try {
+      wrapper.run(NullCallable.INSTANCE, 0, null, false);
+      Assert.assertNull(wrapper.takeStats());
+      wrapper.setStatsInterval(1);
+      wrapper.ping();
+      Assert.assertNull(wrapper.takeStats());
+      wrapper.run(NullCallable.INSTANCE, 0, null, false);
+      final ChildStats stats = wrapper.takeStats();
+      Assert.assertNotNull(stats);
+      Assert.assertTrue(0 < stats.getLiveHeapBytes());
+      Assert.assertNull(wrapper.takeStats());
+    }
+    finally {
+      factory.destroyObject(key, wrapper);
+    }
+  }
+}
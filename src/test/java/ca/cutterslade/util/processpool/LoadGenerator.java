@@ -0,0 +1,123 @@
+package ca.cutterslade.util.processpool;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.pool.impl.GenericKeyedObjectPool;
+
+import ca.cutterslade.util.jvmbuilder.JvmFactory;
+import ca.cutterslade.util.jvmbuilder.sun.SunJvmFactoryBuilder;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * Measures the overhead of the pool with loopback children; arguments: {@code [tasks] [payload sizes] [clients]}.
+ */
+public final class LoadGenerator {
+  private static final class EchoCallable implements Callable<byte[]>, Serializable {
+    private static final long serialVersionUID = 1L;
+    private final byte[] payload;
+
+    private EchoCallable(final byte[] payload) {
+      this.payload = payload;
+    }
+
+    @Override
+    public byte[] call() {
+      return payload;
+    }
+  }
+
+  private LoadGenerator() {
+  }
+
+  public static void main(final String[] args) throws InterruptedException, ExecutionException {
+    final int tasks = 0 < args.length ? Integer.parseInt(args[0]) : 10000;
+    final List<Integer> sizes = integers(1 < args.length ? args[1] : "0,1024,65536");
+    final List<Integer> concurrencies = integers(2 < args.length ? args[2] : "1,4,16");
+    System.out.println("   bytes threads     tasks/s    p50 us    p90 us    p99 us    max us");
+    for (final int size : sizes) {
+      for (final int concurrency : concurrencies) {
+        run(tasks, size, concurrency);
+      }
+    }
+  }
+
+  private static List<Integer> integers(final String list) {
+    final List<Integer> integers = Lists.newArrayList();
+    for (final String value : Splitter.on(',').trimResults().omitEmptyStrings().split(list)) {
+      integers.add(Integer.valueOf(value));
+    }
+    return integers;
+  }
+
+  private static void run(final int tasks, final int size, final int concurrency)
+      throws InterruptedException, ExecutionException {
+    final LoopbackProcessWrapperFactory factory = new LoopbackProcessWrapperFactory(5000);
+    final ProcessPool pool = new ProcessPool(new KeyedObjectPoolProvider(factory, concurrency,
+        GenericKeyedObjectPool.WHEN_EXHAUSTED_BLOCK, 5000, concurrency, concurrency, 0, true, true, 10000, 10, 5000,
+        false, true));
+    final JvmFactory<?> jvmFactory = new SunJvmFactoryBuilder().setMainClass(ProcessTask.class).build();
+    final ProcessPoolExecutorService service = new ProcessPoolExecutorService(
+        MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(concurrency)), pool, jvmFactory);
+    final ListeningExecutorService clients =
+        MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(concurrency));
+    try {
+      pool.prestart(jvmFactory, concurrency, concurrency);
+      final EchoCallable task = new EchoCallable(new byte[size]);
+      // Let the JIT compile the hot paths before measuring
+      measure(service, clients, task, Math.min(tasks, 1000), concurrency);
+      final long start = System.nanoTime();
+      final long[] latencies = measure(service, clients, task, tasks, concurrency);
+      final long elapsed = System.nanoTime() - start;
+      Arrays.sort(latencies);
+      System.out.println(String.format("%8d %7d %11.0f %9.1f %9.1f %9.1f %9.1f", size, concurrency,
+          latencies.length * 1e9 / elapsed, micros(latencies, 0.5), micros(latencies, 0.9), micros(latencies, 0.99),
+          micros(latencies, 1)));
+    }
+    finally {
+      clients.shutdown();
+      service.shutdown();
+      service.awaitTermination(10, TimeUnit.SECONDS);
+    }
+  }
+
+  private static long[] measure(final ProcessPoolExecutorService service, final ListeningExecutorService clients,
+      final EchoCallable task, final int tasks, final int concurrency)
+      throws InterruptedException, ExecutionException {
+    final int perClient = Math.max(1, tasks / concurrency);
+    final List<Future<long[]>> results = Lists.newArrayListWithCapacity(concurrency);
+    for (int i = 0; i < concurrency; i++) {
+      results.add(clients.submit(new Callable<long[]>() {
+        @Override
+        public long[] call() throws Exception {
+          final long[] latencies = new long[perClient];
+          for (int j = 0; j < perClient; j++) {
+            final long start = System.nanoTime();
+            service.submit(task).get();
+            latencies[j] = System.nanoTime() - start;
+          }
+          return latencies;
+        }
+      }));
+    }
+    final long[] latencies = new long[perClient * concurrency];
+    for (int i = 0; i < concurrency; i++) {
+      System.arraycopy(results.get(i).get(), 0, latencies, i * perClient, perClient);
+    }
+    return latencies;
+  }
+
+  private static double micros(final long[] sorted, final double percentile) {
+    return sorted[Math.min(sorted.length - 1, (int) (percentile * sorted.length))] / 1e3;
+  }
+}
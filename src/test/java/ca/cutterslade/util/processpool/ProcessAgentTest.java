@@ -0,0 +1,96 @@
+package ca.cutterslade.util.processpool;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import ca.cutterslade.util.jvmbuilder.sun.SunJvmFactoryBuilder;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+public class ProcessAgentTest {
+  private static final byte[] SECRET = "secret".getBytes(StandardCharsets.UTF_8);
+
+  private final ExecutorService agentService = Executors.newCachedThreadPool();
+  private ProcessAgent firstAgent;
+  private ProcessAgent secondAgent;
+  private ProcessPoolExecutorService service;
+
+  @Before
+  public void setupService() throws IOException {
+    firstAgent = new ProcessAgent(0, 1, new SunJvmFactoryBuilder().setMainClass(ProcessTask.class).build(), SECRET);
+    secondAgent = new ProcessAgent(0, 1, new SunJvmFactoryBuilder().setMainClass(ProcessTask.class).build(), SECRET);
+    agentService.submit(firstAgent);
+    agentService.submit(secondAgent);
+    final AgentProcessWrapperFactory factory = new AgentProcessWrapperFactory(
+        ImmutableList.of(firstAgent.getAddress(), secondAgent.getAddress()), SECRET, InetAddress.getLoopbackAddress(),
+        5000, 5000);
+    final ListeningExecutorService underlying = MoreExecutors.listeningDecorator(Executors.newCachedThreadPool());
+    final ProcessPool pool = new ProcessPool(new KeyedObjectPoolProvider(factory));
+    service = new ProcessPoolExecutorService(underlying, pool, new SunJvmFactoryBuilder());
+  }
+
+  @After
+  public void shutdownService() throws InterruptedException, IOException {
+    try {
+      service.shutdown();
+      Assert.assertTrue(service.awaitTermination(10, TimeUnit.SECONDS));
+    }
+    finally {
+      firstAgent.close();
+      secondAgent.close();
+      agentService.shutdown();
+    }
+  }
+
+  @Test
+  public void testConcurrentExecutionsUseBothAgents() throws InterruptedException, TimeoutException,
+      ExecutionException {
+    final List<Future<String>> futures =
+        service.invokeAll(Arrays.asList(VmNameCallable.INSTANCE, VmNameCallable.INSTANCE));
+    final String firstName = futures.get(0).get(10, TimeUnit.SECONDS);
+    final String secondName = futures.get(1).get(10, TimeUnit.SECONDS);
+    Assert.assertNotEquals(ManagementFactory.getRuntimeMXBean().getName(), firstName);
+    Assert.assertNotEquals(firstName, secondName);
+    Assert.assertEquals(0, firstAgent.freeSlots());
+    Assert.assertEquals(0, secondAgent.freeSlots());
+  }
+
+  @Test
+  public void testExitedChildrenAreForgotten() throws InterruptedException, TimeoutException, ExecutionException {
+    Assert.assertNotNull(service.submit(VmNameCallable.INSTANCE).get(10, TimeUnit.SECONDS));
+    Assert.assertEquals(1, firstAgent.getChildCount() + secondAgent.getChildCount());
+    service.shutdown();
+    Assert.assertTrue(service.awaitTermination(10, TimeUnit.SECONDS));
+    Assert.assertEquals(0, firstAgent.getChildCount() + secondAgent.getChildCount());
+  }
+
+  @Test
+  public void testCommandWithWrongSecretIsRejected() throws IOException {
+    Assert.assertEquals(1, ProcessAgent.call(firstAgent.getAddress(), SECRET, new ProcessAgent.StatusCommand()));
+    try {
+      ProcessAgent.call(firstAgent.getAddress(), "wrong".getBytes(StandardCharsets.UTF_8),
+          new ProcessAgent.StatusCommand());
+      Assert.fail("Expected command to be rejected");
+    }
+    catch (IOException e) {
+      // The agent closes the connection without executing the command
+    }
+  }
+}
@@ -1,7 +1,11 @@
 package ca.cutterslade.util.processpool;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
 import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.Callable;
@@ -11,19 +15,27 @@ import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
+import org.apache.commons.pool.impl.GenericKeyedObjectPool;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import ca.cutterslade.util.jvmbuilder.JvmFactory;
 import ca.cutterslade.util.jvmbuilder.sun.SunJvmFactoryBuilder;
 
+import com.google.common.base.Function;
+import com.google.common.base.Throwables;
+import com.google.common.collect.DiscreteDomains;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Ranges;
 import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
 
 public class ProcessPoolExecutorServiceTest {
   private static final String HELLO_WORLD = "Hello, World!";
+  private static final String WARMED_PROPERTY = "processpool.test.warmed";
+  private static final JvmFactory<?> JVM_FACTORY = new SunJvmFactoryBuilder().setMainClass(ProcessTask.class).build();
 
   private enum TrueCallable implements Callable<Boolean>, Serializable {
     INSTANCE;
@@ -45,7 +57,28 @@ public class ProcessPoolExecutorServiceTest {
     }
   }
 
-  private enum VmNameCallable implements Callable<String>, Serializable {
+  private enum WarmUpCallable implements Callable<Void>, Serializable {
+    INSTANCE;
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public Void call() throws Exception {
+      System.setProperty(WARMED_PROPERTY, Boolean.TRUE.toString());
+      return null;
+    }
+  }
+
+  private enum WarmedCallable implements Callable<String>, Serializable {
+    INSTANCE;
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public String call() throws Exception {
+      return System.getProperty(WARMED_PROPERTY);
+    }
+  }
+
+  private enum InlineVmNameCallable implements Callable<String>, InlineSafe, Serializable {
     INSTANCE;
     private static final long serialVersionUID = 1L;
 
@@ -55,19 +88,206 @@ public class ProcessPoolExecutorServiceTest {
     }
   }
 
+  private enum InlineRunnable implements Runnable, InlineSafe, Serializable {
+    INSTANCE;
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public void run() {
+    }
+  }
+
+  private static final class InlineSleepRunnable implements Runnable, InlineSafe, SpecifiesTimeout, Serializable {
+    private static final long serialVersionUID = 1L;
+    private final long sleepMillis;
+    private final long timeoutMillis;
+
+    private InlineSleepRunnable(final long sleepMillis, final long timeoutMillis) {
+      this.sleepMillis = sleepMillis;
+      this.timeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public void run() {
+      try {
+        Thread.sleep(sleepMillis);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException(e);
+      }
+    }
+
+    @Override
+    public long getTimeoutMillis() {
+      return timeoutMillis;
+    }
+  }
+
+  private enum InlineFailingCallable implements Callable<String>, InlineSafe, Serializable {
+    INSTANCE;
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public String call() throws Exception {
+      throw new IllegalStateException(HELLO_WORLD);
+    }
+  }
+
+  private enum SquareFunction implements Function<Integer, Long>, Serializable {
+    INSTANCE;
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public Long apply(final Integer input) {
+      return (long) input * input;
+    }
+  }
+
+  private enum NullFunction implements Function<Integer, Long>, Serializable {
+    INSTANCE;
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public Long apply(final Integer input) {
+      return null;
+    }
+  }
+
+  private enum NullCombiner implements Combiner<Long>, Serializable {
+    INSTANCE;
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public Long combine(final Long first, final Long second) {
+      return null;
+    }
+  }
+
+  private enum SumCombiner implements Combiner<Long>, Serializable {
+    INSTANCE;
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public Long combine(final Long first, final Long second) {
+      return first + second;
+    }
+  }
+
+  private enum NoopRunnable implements Runnable, Serializable {
+    INSTANCE;
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public void run() {
+    }
+  }
+
+  private static final class SleepCallable implements Callable<String>, SpecifiesTimeout, Serializable {
+    private static final long serialVersionUID = 1L;
+    private final long sleepMillis;
+    private final long timeoutMillis;
+
+    private SleepCallable(final long sleepMillis, final long timeoutMillis) {
+      this.sleepMillis = sleepMillis;
+      this.timeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public String call() throws Exception {
+      Thread.sleep(sleepMillis);
+      return ManagementFactory.getRuntimeMXBean().getName();
+    }
+
+    @Override
+    public long getTimeoutMillis() {
+      return timeoutMillis;
+    }
+  }
+
+  /**
+   * Sleeps in the first child to run it, which creates the marker file; returns immediately in any other.
+   */
+  private static final class StragglerCallable implements Callable<String>, Idempotent, Serializable {
+    private static final long serialVersionUID = 1L;
+    private final File marker;
+
+    private StragglerCallable(final File marker) {
+      this.marker = marker;
+    }
+
+    @Override
+    public String call() throws Exception {
+      if (marker.createNewFile()) {
+        Thread.sleep(60000);
+      }
+      return ManagementFactory.getRuntimeMXBean().getName();
+    }
+  }
+
+  /**
+   * Counts in a file until the child is killed, ignoring interrupts.
+   */
+  private static final class HeartbeatCallable implements Callable<Void>, SpecifiesTimeout, Serializable {
+    private static final long serialVersionUID = 1L;
+    private final File heartbeat;
+    private final long timeoutMillis;
+
+    private HeartbeatCallable(final File heartbeat, final long timeoutMillis) {
+      this.heartbeat = heartbeat;
+      this.timeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public Void call() throws Exception {
+      for (long beat = 1; ; beat++) {
+        Files.write(heartbeat.toPath(), Long.toString(beat).getBytes(StandardCharsets.UTF_8));
+        try {
+          Thread.sleep(20);
+        }
+        catch (InterruptedException e) {
+          // Keep going; only killing the child stops this task
+        }
+      }
+    }
+
+    @Override
+    public long getTimeoutMillis() {
+      return timeoutMillis;
+    }
+  }
+
+  private final List<ProcessPoolExecutorService> services = Lists.newArrayList();
   private ProcessPoolExecutorService service;
 
+  /**
+   * Start a service which is shut down after the test.
+   */
+  private ProcessPoolExecutorService startService(final ProcessPool pool,
+      final ProcessPoolExecutorService.Options options) {
+    final ProcessPoolExecutorService started = new ProcessPoolExecutorService(
+        MoreExecutors.listeningDecorator(Executors.newCachedThreadPool()), pool, JVM_FACTORY, options);
+    services.add(started);
+    return started;
+  }
+
+  private ProcessPoolExecutorService startService(final ProcessPool pool) {
+    return startService(pool, new ProcessPoolExecutorService.Options());
+  }
+
   @Before
   public void setupService() {
-    final ListeningExecutorService underlying = MoreExecutors.listeningDecorator(Executors.newCachedThreadPool());
-    final ProcessPool pool = new ProcessPool(new KeyedObjectPoolProvider().get());
-    service = new ProcessPoolExecutorService(underlying, pool, new SunJvmFactoryBuilder());
+    service = startService(new ProcessPool(new KeyedObjectPoolProvider()));
   }
 
   @After
-  public void shutdownService() throws InterruptedException {
-    service.shutdown();
-    Assert.assertTrue(service.awaitTermination(10, TimeUnit.SECONDS));
+  public void shutdownServices() throws InterruptedException {
+    for (final ProcessPoolExecutorService started : services) {
+      started.shutdown();
+    }
+    for (final ProcessPoolExecutorService started : services) {
+      Assert.assertTrue(started.awaitTermination(10, TimeUnit.SECONDS));
+    }
   }
 
   @Test
@@ -106,4 +326,238 @@ public class ProcessPoolExecutorServiceTest {
     Assert.assertNotEquals(myVmName, secondName);
     Assert.assertNotEquals(firstName, secondName);
   }
+
+  @Test
+  public void testTimeoutInterruptsTask() throws InterruptedException, TimeoutException, ExecutionException {
+    final ListenableFuture<String> future = service.submit(new SleepCallable(60000, 500));
+    try {
+      future.get(10, TimeUnit.SECONDS);
+      Assert.fail("Expected task to time out");
+    }
+    catch (ExecutionException e) {
+      Assert.assertTrue(Throwables.getRootCause(e) instanceof TimeoutException);
+    }
+    final String pooledVmName = service.submit(VmNameCallable.INSTANCE).get(10, TimeUnit.SECONDS);
+    Assert.assertEquals(pooledVmName, service.submit(new SleepCallable(0, 500)).get(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testTimeoutAllowsLongTask() throws InterruptedException, TimeoutException, ExecutionException {
+    final ListenableFuture<String> future = service.submit(new SleepCallable(6000, 20000));
+    Assert.assertNotNull(future.get(20, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testTimeoutKillsRunawayTask() throws InterruptedException, TimeoutException, IOException {
+    final File heartbeat = File.createTempFile("heartbeat", ".txt");
+    try {
+      final ListenableFuture<Void> future = service.submit(new HeartbeatCallable(heartbeat, 500));
+      Assert.assertTrue(Throwables.getRootCause(failure(future)) instanceof TimeoutException);
+      Thread.sleep(1000);
+      final byte[] beat = Files.readAllBytes(heartbeat.toPath());
+      Thread.sleep(500);
+      Assert.assertArrayEquals(beat, Files.readAllBytes(heartbeat.toPath()));
+    }
+    finally {
+      Assert.assertTrue(heartbeat.delete());
+    }
+  }
+
+  @Test
+  public void testCancelStopsRunningTask() throws InterruptedException, IOException {
+    final File heartbeat = File.createTempFile("heartbeat", ".txt");
+    try {
+      final ListenableFuture<Void> future = service.submit(new HeartbeatCallable(heartbeat, 0));
+      for (int i = 0; i < 1000 && 0 == heartbeat.length(); i++) {
+        Thread.sleep(10);
+      }
+      Assert.assertTrue(0 < heartbeat.length());
+      Assert.assertTrue(future.cancel(true));
+      Assert.assertTrue(future.isCancelled());
+      Thread.sleep(500);
+      final byte[] beat = Files.readAllBytes(heartbeat.toPath());
+      Thread.sleep(500);
+      Assert.assertArrayEquals(beat, Files.readAllBytes(heartbeat.toPath()));
+    }
+    finally {
+      Assert.assertTrue(heartbeat.delete());
+    }
+  }
+
+  @Test
+  public void testTaskUsageIsReported() throws InterruptedException, TimeoutException, ExecutionException {
+    final AccountedFuture<String> future = service.submit(new SleepCallable(200, 5000));
+    Assert.assertNotNull(future.get(10, TimeUnit.SECONDS));
+    final TaskUsage usage = future.getUsage();
+    Assert.assertNotNull(usage);
+    Assert.assertEquals(1, usage.getTasks());
+    Assert.assertTrue(usage.getWallNanos() >= TimeUnit.MILLISECONDS.toNanos(200));
+    service.submit(new SleepCallable(0, 5000)).get(10, TimeUnit.SECONDS);
+    Assert.assertEquals(2, service.getUsageByTaskClass().get(SleepCallable.class).getTasks());
+  }
+
+  @Test
+  public void testRunnableUsageIsReportedByItsClass() throws InterruptedException, TimeoutException,
+      ExecutionException {
+    Assert.assertNull(service.submit(NoopRunnable.INSTANCE).get(10, TimeUnit.SECONDS));
+    Assert.assertEquals(1, service.getUsageByTaskClass().get(NoopRunnable.class).getTasks());
+  }
+
+  @Test
+  public void testWarmUpRunsBeforeTask() throws InterruptedException, TimeoutException, ExecutionException {
+    final ProcessWrapperFactory factory = new ProcessWrapperFactory(5000, 5000);
+    factory.addWarmUp(JVM_FACTORY, WarmUpCallable.INSTANCE);
+    final ProcessPoolExecutorService warmService =
+        startService(new ProcessPool(new KeyedObjectPoolProvider(factory)));
+    final ListenableFuture<String> warmed = warmService.submit(WarmedCallable.INSTANCE);
+    Assert.assertEquals(Boolean.TRUE.toString(), warmed.get(10, TimeUnit.SECONDS));
+    Assert.assertNull(service.submit(WarmedCallable.INSTANCE).get(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testTraceIsWritten() throws InterruptedException, TimeoutException, ExecutionException, IOException {
+    final ProcessPoolExecutorService tracedService =
+        startService(new ProcessPool(new KeyedObjectPoolProvider()),
+            new ProcessPoolExecutorService.Options().setTracer(new Tracer(1, 1000)));
+    Assert.assertEquals(HELLO_WORLD, tracedService.submit(HelloWorldCallable.INSTANCE).get(10, TimeUnit.SECONDS));
+    final File file = File.createTempFile("trace", ".json");
+    try {
+      tracedService.writeTrace(file);
+      final String trace = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+      for (final String span : Arrays.asList("queue", "borrow", "spawn", "serialize", "transit", "child execute",
+          "return", "deserialize")) {
+        Assert.assertTrue(span, trace.contains("\"name\":\"" + span + '"'));
+      }
+    }
+    finally {
+      Assert.assertTrue(file.delete());
+    }
+  }
+
+  @Test
+  public void testHedgedTaskIsTraced() throws InterruptedException, TimeoutException, ExecutionException, IOException {
+    final ProcessPoolExecutorService tracedService = startService(new ProcessPool(new KeyedObjectPoolProvider()),
+        new ProcessPoolExecutorService.Options().setTracer(new Tracer(1, 1000)).setHedging(new HedgingPolicy(0.5, 1)));
+    final File marker = File.createTempFile("straggler", ".marker");
+    final File file = File.createTempFile("trace", ".json");
+    try {
+      Assert.assertNotNull(tracedService.submit(new StragglerCallable(marker)).get(10, TimeUnit.SECONDS));
+      tracedService.writeTrace(file);
+      final String trace = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+      for (final String span : Arrays.asList("borrow", "spawn", "child execute")) {
+        Assert.assertTrue(span, trace.contains("\"name\":\"" + span + '"'));
+      }
+    }
+    finally {
+      Assert.assertTrue(marker.delete());
+      Assert.assertTrue(file.delete());
+    }
+  }
+
+  @Test
+  public void testInlineTaskRunsInProcess() throws InterruptedException, TimeoutException, ExecutionException {
+    final ProcessPoolExecutorService inlineService = startService(new ProcessPool(new KeyedObjectPoolProvider()),
+        new ProcessPoolExecutorService.Options().setInline(new InlinePolicy(InlinePolicy.Mode.ALWAYS)));
+    Assert.assertEquals(ManagementFactory.getRuntimeMXBean().getName(),
+        inlineService.submit(InlineVmNameCallable.INSTANCE).get(10, TimeUnit.SECONDS));
+    Assert.assertNotEquals(ManagementFactory.getRuntimeMXBean().getName(),
+        inlineService.submit(VmNameCallable.INSTANCE).get(10, TimeUnit.SECONDS));
+    // A failure is reported the same way whether the task ran inline or in a child
+    final Throwable inlineFailure = failure(inlineService.submit(InlineFailingCallable.INSTANCE));
+    final Throwable childFailure = failure(service.submit(InlineFailingCallable.INSTANCE));
+    Assert.assertEquals(childFailure.getClass(), inlineFailure.getClass());
+    Assert.assertEquals(childFailure.getCause().getClass(), inlineFailure.getCause().getClass());
+    Assert.assertEquals(childFailure.getCause().getCause().getClass(),
+        inlineFailure.getCause().getCause().getClass());
+    Assert.assertEquals(HELLO_WORLD, inlineFailure.getCause().getCause().getMessage());
+    // Only the task which ran in a child is accounted to a JVM factory
+    Assert.assertEquals(3, inlineService.getUsageByTaskClass().size());
+    long childTasks = 0;
+    for (final TaskUsage usage : inlineService.getUsageByJvmFactory().values()) {
+      childTasks += usage.getTasks();
+    }
+    Assert.assertEquals(1, childTasks);
+  }
+
+  @Test
+  public void testInlineRunnableRunsInProcess() throws InterruptedException, TimeoutException, ExecutionException {
+    final ProcessPoolExecutorService inlineService = startService(new ProcessPool(new KeyedObjectPoolProvider()),
+        new ProcessPoolExecutorService.Options().setInline(new InlinePolicy(InlinePolicy.Mode.ALWAYS)));
+    // The result could not be serialized, so the runnable can not have run in a child
+    final Object result = new Object();
+    Assert.assertSame(result, inlineService.submit(InlineRunnable.INSTANCE, result).get(10, TimeUnit.SECONDS));
+    // A runnable with a timeout runs in a child, where the timeout is enforced
+    Assert.assertTrue(Throwables.getRootCause(failure(inlineService.submit(new InlineSleepRunnable(60000, 500))))
+        instanceof TimeoutException);
+  }
+
+  private static Throwable failure(final Future<?> future) throws InterruptedException, TimeoutException {
+    try {
+      future.get(10, TimeUnit.SECONDS);
+      throw new AssertionError("Expected task to fail");
+    }
+    catch (ExecutionException e) {
+      return e;
+    }
+  }
+
+  @Test
+  public void testMap() throws InterruptedException, TimeoutException, ExecutionException {
+    final List<Integer> input = Ranges.closed(1, 1000).asSet(DiscreteDomains.integers()).asList();
+    final List<Long> squares = service.map(input, SquareFunction.INSTANCE, 2).get(30, TimeUnit.SECONDS);
+    Assert.assertEquals(Lists.transform(input, SquareFunction.INSTANCE), squares);
+  }
+
+  @Test
+  public void testMapReduce() throws InterruptedException, TimeoutException, ExecutionException {
+    final List<Integer> input = Ranges.closed(1, 1000).asSet(DiscreteDomains.integers()).asList();
+    final ListenableFuture<Long> sum = service.mapReduce(input, SquareFunction.INSTANCE, SumCombiner.INSTANCE, 2);
+    Assert.assertEquals(Long.valueOf(1000L * 1001 * 2001 / 6), sum.get(30, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testMapReduceWithMoreWorkersThanChildren()
+      throws InterruptedException, TimeoutException, ExecutionException {
+    final LoopbackProcessWrapperFactory factory = new LoopbackProcessWrapperFactory(5000);
+    final ProcessPoolExecutorService loopbackService = startService(new ProcessPool(new KeyedObjectPoolProvider(factory,
+        2, GenericKeyedObjectPool.WHEN_EXHAUSTED_FAIL, 5000, 2, 2, 0, true, true, 10000, 10, 5000, false, true)));
+    final List<Integer> input = Ranges.closed(1, 1000).asSet(DiscreteDomains.integers()).asList();
+    Assert.assertEquals(Lists.transform(input, SquareFunction.INSTANCE),
+        loopbackService.map(input, SquareFunction.INSTANCE, 8).get(30, TimeUnit.SECONDS));
+    Assert.assertNull(
+        loopbackService.mapReduce(input, NullFunction.INSTANCE, NullCombiner.INSTANCE, 8).get(30, TimeUnit.SECONDS));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMapRequiresWorkers() {
+    service.map(Arrays.asList(1, 2), SquareFunction.INSTANCE, 0);
+  }
+
+  @Test
+  public void testHedgedTaskAvoidsStraggler()
+      throws InterruptedException, TimeoutException, ExecutionException, IOException {
+    final ProcessPool pool = new ProcessPool(new KeyedObjectPoolProvider(new ProcessWrapperFactory(5000, 5000)));
+    final ProcessPoolExecutorService hedgedService =
+        startService(pool, new ProcessPoolExecutorService.Options().setHedging(new HedgingPolicy(0.5, 1)));
+    final File marker = File.createTempFile("straggler", ".marker");
+    try {
+      pool.prestart(JVM_FACTORY, 2, 2);
+      // Establish the usual latency of the task, which does not sleep while the marker exists
+      for (int i = 0; i < 20; i++) {
+        hedgedService.submit(new StragglerCallable(marker)).get(10, TimeUnit.SECONDS);
+      }
+      Assert.assertTrue(marker.delete());
+      final long start = System.nanoTime();
+      Assert.assertNotNull(hedgedService.submit(new StragglerCallable(marker)).get(30, TimeUnit.SECONDS));
+      Assert.assertTrue(10 > TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start));
+      // The straggling child is cancelled rather than killed, so both children are returned to the pool
+      for (int i = 0; i < 100 && 2 > pool.getIdleCount(JVM_FACTORY); i++) {
+        Thread.sleep(10);
+      }
+      Assert.assertEquals(2, pool.getIdleCount(JVM_FACTORY));
+    }
+    finally {
+      marker.delete();
+    }
+  }
 }
@@ -0,0 +1,50 @@
+package ca.cutterslade.util.processpool;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ca.cutterslade.util.jvmbuilder.JvmFactory;
+import ca.cutterslade.util.jvmbuilder.sun.SunJvmFactoryBuilder;
+
+public class ProcessPoolTest {
+  @Test
+  public void testPrestartAndClose() throws InterruptedException {
+    final ProcessWrapperFactory factory = new ProcessWrapperFactory(5000, 5000);
+    final ProcessPool pool = new ProcessPool(new KeyedObjectPoolProvider(factory));
+    final JvmFactory<?> jvmFactory = new SunJvmFactoryBuilder().build();
+    try {
+      pool.prestart(jvmFactory, 3, 3);
+      Assert.assertEquals(3, pool.getIdleCount(jvmFactory));
+      final ProcessWrapper wrapper = pool.getWrapper(pool.getJvmFactory(this, jvmFactory));
+      Assert.assertEquals(2, pool.getIdleCount(jvmFactory));
+      pool.returnWrapper(pool.getJvmFactory(this, jvmFactory), wrapper);
+    }
+    finally {
+      pool.close();
+    }
+    Assert.assertTrue(factory.awaitDestroyed(0, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void testLoopbackChildRunsInProcess() throws ExecutionException {
+    final LoopbackProcessWrapperFactory factory = new LoopbackProcessWrapperFactory(5000);
+    final ProcessPool pool = new ProcessPool(new KeyedObjectPoolProvider(factory));
+    final JvmFactory<?> jvmFactory = pool.getJvmFactory(this, new SunJvmFactoryBuilder().build());
+    try {
+      final ProcessWrapper wrapper = pool.getWrapper(jvmFactory);
+      try {
+        Assert.assertEquals(ManagementFactory.getRuntimeMXBean().getName(), wrapper.run(VmNameCallable.INSTANCE));
+      }
+      finally {
+        pool.returnWrapper(jvmFactory, wrapper);
+      }
+    }
+    finally {
+      pool.close();
+    }
+  }
+}
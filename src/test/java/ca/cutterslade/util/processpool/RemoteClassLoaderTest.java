@@ -0,0 +1,95 @@
+package ca.cutterslade.util.processpool;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ca.cutterslade.util.jvmbuilder.JvmFactory;
+import ca.cutterslade.util.jvmbuilder.sun.SunJvmFactoryBuilder;
+
+public class RemoteClassLoaderTest {
+  private static final String TASK_NAME = "RemoteTask";
+  /**
+   * Reports the class loader which loaded the task in the child.
+   */
+  private static final String TASK_SOURCE = "public class " + TASK_NAME +
+      " implements java.util.concurrent.Callable<String>, java.io.Serializable {\n" +
+      "  public String call() {\n" +
+      "    return getClass().getClassLoader().getClass().getName();\n" +
+      "  }\n" +
+      "}\n";
+  private static final String RUNNABLE_NAME = "RemoteRunnable";
+  private static final String RUNNABLE_SOURCE = "public class " + RUNNABLE_NAME +
+      " implements Runnable, java.io.Serializable {\n" +
+      "  public void run() {\n" +
+      "  }\n" +
+      "}\n";
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * Compile the task into a directory which is only on the class path of the returned task's class loader.
+   */
+  private Object compileTask(final String name, final String taskSource) throws Exception {
+    final File classes = folder.newFolder("classes");
+    final File source = new File(classes, name + ".java");
+    Files.write(source.toPath(), taskSource.getBytes(StandardCharsets.UTF_8));
+    final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    Assert.assertEquals(0, compiler.run(null, null, null, source.getPath()));
+    final ClassLoader classLoader =
+        new URLClassLoader(new URL[] {classes.toURI().toURL()}, RemoteClassLoaderTest.class.getClassLoader());
+    return classLoader.loadClass(name).newInstance();
+  }
+
+  private static Object run(final ProcessWrapperFactory factory, final JvmFactory<?> key, final Callable<?> task)
+      throws Exception {
+    final ProcessWrapper wrapper = factory.createWrapper(key);
+    try {
+      return wrapper.run(task);
+    }
+    finally {
+      factory.destroyObject(key, wrapper);
+    }
+  }
+
+  @Test
+  public void testTaskClassIsLoadedFromParentAndCached() throws Exception {
+    final Callable<?> task = (Callable<?>) compileTask(TASK_NAME, TASK_SOURCE);
+    final File cache = folder.newFolder("cache");
+    final ProcessWrapperFactory factory =
+        new ProcessWrapperFactory(5000, 5000, new ProcessWrapperFactory.Options().setClassCache(cache));
+    final JvmFactory<?> key = ProcessPool.taskJvmFactory(new SunJvmFactoryBuilder().build());
+    Assert.assertEquals(RemoteClassLoader.class.getName(), run(factory, key, task));
+    final File[] cached = cache.listFiles();
+    Assert.assertEquals(1, cached.length);
+    // A class fetched from the parent again would be stored again
+    Assert.assertTrue(cached[0].setLastModified(1000));
+    Assert.assertEquals(RemoteClassLoader.class.getName(), run(factory, key, task));
+    Assert.assertEquals(1000, cached[0].lastModified());
+    Assert.assertTrue(factory.awaitDestroyed(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testWrappedTaskClassIsLoadedFromParent() throws Exception {
+    final Runnable task = (Runnable) compileTask(RUNNABLE_NAME, RUNNABLE_SOURCE);
+    final ProcessWrapperFactory factory =
+        new ProcessWrapperFactory(5000, 5000, new ProcessWrapperFactory.Options().setRemoteClasses(true));
+    final JvmFactory<?> key = ProcessPool.taskJvmFactory(new SunJvmFactoryBuilder().build());
+    // The adapting callable's own class comes from the library, the runnable's only from its loader
+    Assert.assertEquals(Boolean.TRUE, run(factory, key, new RunnableCallable<>(task, Boolean.TRUE)));
+    Assert.assertTrue(factory.awaitDestroyed(10, TimeUnit.SECONDS));
+  }
+}
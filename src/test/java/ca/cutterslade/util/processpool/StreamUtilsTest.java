@@ -0,0 +1,51 @@
+package ca.cutterslade.util.processpool;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.base.Strings;
+
+public class StreamUtilsTest {
+  private static byte[] write(final Object object, final FrameCompressor compressor) throws IOException {
+    final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    StreamUtils.writeObject(output, object, compressor);
+    return output.toByteArray();
+  }
+
+  private static Object read(final byte[] frame) throws IOException, ClassNotFoundException {
+    return StreamUtils.readObject(new ByteArrayInputStream(frame));
+  }
+
+  @Test
+  public void testCompressibleFrameIsCompressed() throws IOException, ClassNotFoundException {
+    final String text = Strings.repeat("Hello, World! ", 10000);
+    final byte[] raw = write(text, FrameCompressor.NONE);
+    final byte[] compressed = write(text, new FrameCompressor(1024, 0.75));
+    Assert.assertEquals(FrameCompressor.RAW, raw[4]);
+    Assert.assertEquals(FrameCompressor.DEFLATE, compressed[4]);
+    Assert.assertTrue(compressed.length < raw.length / 10);
+    Assert.assertEquals(text, read(compressed));
+  }
+
+  @Test
+  public void testSmallFrameIsNotCompressed() throws IOException, ClassNotFoundException {
+    final byte[] frame = write("Hello, World!", new FrameCompressor(1024, 0.75));
+    Assert.assertEquals(FrameCompressor.RAW, frame[4]);
+    Assert.assertEquals("Hello, World!", read(frame));
+  }
+
+  @Test
+  public void testIncompressibleFramesBackOff() throws IOException, ClassNotFoundException {
+    final byte[] random = new byte[64 * 1024];
+    new Random(0).nextBytes(random);
+    final FrameCompressor compressor = new FrameCompressor(1024, 0.75);
+    Assert.assertEquals(FrameCompressor.RAW, write(random, compressor)[4]);
+    Assert.assertNull(compressor.compress(Strings.repeat("Hello, World! ", 10000).getBytes()));
+    Assert.assertArrayEquals(random, (byte[]) read(write(random, compressor)));
+  }
+}
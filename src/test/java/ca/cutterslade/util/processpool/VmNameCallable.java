@@ -0,0 +1,18 @@
+package ca.cutterslade.util.processpool;
+
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Callable;
+
+/**
+ * Returns the name of the JVM it runs in, which differs between children.
+ */
+enum VmNameCallable implements Callable<String>, Serializable {
+  INSTANCE;
+  private static final long serialVersionUID = 1L;
+
+  @Override
+  public String call() throws Exception {
+    return ManagementFactory.getRuntimeMXBean().getName();
+  }
+}